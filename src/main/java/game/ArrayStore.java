@@ -0,0 +1,121 @@
+package game;
+
+/**
+ * An instance is a store held in arrays on the heap, with the edges in
+ * compressed-sparse-row form: the exits of the tile with id i are edgeTarget[k]
+ * with weight edgeWeight[k], for edgeStart[i] <= k < edgeStart[i + 1].
+ * No slot is ever empty. Each undirected edge appears once in the exits of each
+ * of its two tiles.
+ */
+final class ArrayStore implements CavernStore {
+  private static final Tile.Type[] TILE_TYPES = Tile.Type.values();
+
+  private final OpenCells cells;
+  private final int[] gold;
+  private final byte[] types;
+  private final int[] edgeStart;
+  private final int[] edgeTarget;
+  private final byte[] edgeWeight;
+  private final int entranceId;
+  private final int targetId;
+
+  /**
+   * Constructor: a store with the open cells of openCells, with gold gld[i] and the
+   * type with ordinal tps[i] on the tile with id i, the edges (start, target, weight)
+   * in compressed-sparse-row form, and entrance and target with ids entrance and trgt.
+   */
+  ArrayStore(OpenCells openCells, int[] gld, byte[] tps, 
+             int[] start, int[] target, byte[] weight, int entrance, int trgt) {
+    cells = openCells;
+    gold = gld;
+    types = tps;
+    edgeStart = start;
+    edgeTarget = target;
+    edgeWeight = weight;
+    entranceId = entrance;
+    targetId = trgt;
+  }
+
+  @Override
+  public int getRowCount() {
+    return cells.getRowCount();
+  }
+
+  @Override
+  public int getColumnCount() {
+    return cells.getColumnCount();
+  }
+
+  @Override
+  public int count() {
+    return cells.count();
+  }
+
+  @Override
+  public int idAt(int r, int c) {
+    return cells.idAt(r, c);
+  }
+
+  @Override
+  public long cellWithId(int id) {
+    return cells.cellWithId(id);
+  }
+
+  @Override
+  public long word(int w) {
+    return cells.word(w);
+  }
+
+  @Override
+  public int getEntranceId() {
+    return entranceId;
+  }
+
+  @Override
+  public int getTargetId() {
+    return targetId;
+  }
+
+  @Override
+  public int getGold(int id) {
+    return gold[id];
+  }
+
+  @Override
+  public Tile.Type getType(int id) {
+    return TILE_TYPES[types[id]];
+  }
+
+  @Override
+  public int exitStart(int i) {
+    return edgeStart[i];
+  }
+
+  @Override
+  public int exitTarget(int k) {
+    return edgeTarget[k];
+  }
+
+  @Override
+  public int exitWeight(int k) {
+    return edgeWeight[k];
+  }
+
+  @Override
+  public long tileBytes() {
+    return CavernStats.objectBytes(6 * CavernStats.REFERENCE + 2 * 4) + cells.retainedBytes()
+        + CavernStats.arrayBytes(gold.length, 4) + CavernStats.arrayBytes(types.length, 1);
+  }
+
+  @Override
+  public long edgeBytes() {
+    return CavernStats.arrayBytes(edgeStart.length, 4)
+        + CavernStats.arrayBytes(edgeTarget.length, 4)
+        + CavernStats.arrayBytes(edgeWeight.length, 1);
+  }
+
+  @Override
+  public long mappedBytes() {
+    return 0;
+  }
+}
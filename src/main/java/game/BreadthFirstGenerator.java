@@ -0,0 +1,78 @@
+package game;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * An instance digs caverns breadth first from the entrance: each cell that is
+ * reached opens each of its unseen neighbours with a fixed probability, and at least
+ * one of them if it has fewer than two open neighbours already, so that the cavern
+ * does not peter out. This is the generator the game has always used.
+ * The work is inherently sequential.
+ */
+public final class BreadthFirstGenerator implements CavernGenerator {
+  private static final double DENSITY = 0.6;
+  private static final Cavern.Direction[] DIRECTIONS = Cavern.Direction.values();
+
+  @Override
+  public void dig(CavernGenerator.Site site, Random rand) {
+    final int cols = site.getColumnCount();
+    // Cells are packed as row * cols + col. queue holds the open cells in the order
+    // in which they were opened; those from head onwards have not been expanded yet.
+    int[] queue = new int[64];
+    queue[0] = site.getEntranceRow() * cols + site.getEntranceColumn();
+    int size = 1;
+    BitSet pointsSeen = new BitSet(site.getRowCount() * cols);
+    pointsSeen.set(queue[0]);
+    final int[] newExits = new int[DIRECTIONS.length];
+
+    for (int head = 0; head < size; head++) {
+      final int row = queue[head] / cols;
+      final int col = queue[head] % cols;
+
+      // We want to make sure there's a way out if we can get one.
+      // This will prevent stupid degenerate graphs.
+      int existingExits = 0;
+      int numberOfExits = 0;
+      for (Cavern.Direction dir : DIRECTIONS) {
+        int newRow = row + dir.getRowStep();
+        int newCol = col + dir.getColumnStep();
+        if (site.isInterior(newRow, newCol)) {
+          int newPt = newRow * cols + newCol;
+          if (site.isOpen(newRow, newCol)) {
+            existingExits++;
+          } else if (!pointsSeen.get(newPt)) {
+            pointsSeen.set(newPt);
+            newExits[numberOfExits++] = newPt;
+          }
+        }
+      }
+
+      if (numberOfExits > 0) {
+        double modifiedDensity;
+        int forcedExit;
+        // Modify the density function so that the expected number of open exits
+        // is the same even though we're forcing something to be open.
+        if (existingExits < 2) {
+          modifiedDensity = 
+            (numberOfExits == 1 ? 0.0 : (numberOfExits * DENSITY - 1) / (numberOfExits - 1));
+          forcedExit = newExits[rand.nextInt(numberOfExits)];
+        } else {
+          modifiedDensity = DENSITY;
+          forcedExit = -1;
+        }
+        for (int i = 0; i < numberOfExits; i++) {
+          int q = newExits[i];
+          if (q == forcedExit || rand.nextDouble() < modifiedDensity) {
+            if (size == queue.length) {
+              queue = Arrays.copyOf(queue, 2 * size);
+            }
+            queue[size++] = q;
+            site.open(q / cols, q % cols);
+          }
+        }
+      }
+    }
+  }
+}
@@ -1,20 +1,25 @@
 package game;
 
-import java.util.ArrayDeque;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Queue;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
+import java.util.function.IntSupplier;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * An instance represents a Cavern that the explorer can navigate through.
@@ -26,76 +31,189 @@ public class Cavern {
   public static final int MAX_EDGE_WEIGHT = 15;
   public static final int MAX_GOLD_VALUE = 1000;
   public static final int TASTY_VALUE = 5000;
-  private static final double DENSITY = 0.6;
   private static final double GOLD_PROBABILITY = 0.33;
+  private static final Tile.Type[] TILE_TYPES = Tile.Type.values();
+  private static final Direction[] DIRECTIONS = Direction.values();
+  /**
+   * The generator that digs caverns unless another is asked for.
+   */
+  private static final CavernGenerator DEFAULT_GENERATOR = new BreadthFirstGenerator();
+  /**
+   * Caverns with more open tiles than this keep their nodes in a map rather than a
+   * table, as a table costs a reference per tile whether or not its nodes are made.
+   */
+  private static final int NODE_TABLE_LIMIT = 1 << 22;
   private final int rows;
   private final int cols;
   private final Set<Node> graph;
+  /**
+   * The layout of the cavern. Walls are implicit: there is no node or tile for
+   * them unless one is asked for with getNodeAt() or getTileAt().
+   */
+  private final CavernStore store;
+  /**
+   * The open nodes of the graph that have been asked for, indexed by id:
+   * nodes[i].getId() == i, or nodeMap.get(i).getId() == i for a large cavern.
+   * A node (and its tile) is only created the first time it is asked for,
+   * so that a large cavern does not cost an object per tile up front.
+   * Exactly one of nodes and nodeMap is null. See node(i).
+   */
+  private final Node[] nodes;
+  private final ConcurrentHashMap<Integer, Node> nodeMap;
+  /**
+   * The nodes of the walls that have been asked for, by cell (row * cols + col), so
+   * that asking for a wall again returns the same node and tile. See wall(r, c).
+   */
+  private final ConcurrentHashMap<Long, Node> walls = new ConcurrentHashMap<>();
   private final Node entrance;
   private final Node target;
-  private final Node[][] tiles;
 
   /**
-   * Constructor: an instance of size (rws, cls) .
-   * Use rand as a source of randomness for the cavern generation.
-   * Use {@code edgeWeightGenerator} and {@code goldGenerator} to generate edge weights and 
-   * gold values.
-   * Precondition: {@code targetType} must be either {@code Tile.Type.ORB} or 
-   * {@code Tile.Type.ENTRANCE}.
-   */
-  private Cavern(int rws,
-                 int cls,
-                 Random rand,
-                 Supplier<Integer> edgeWeightGenerator,
-                 Supplier<Integer> goldGenerator,
-                 Tile.Type targetType) {
-    rows = rws;
-    cols = cls;
-
-    graph = generateGraph(rand, targetType, goldGenerator);
-
-    entrance = graph.stream().filter((n) -> 
-      n.getTile().getType() == Tile.Type.ENTRANCE).findAny().get();
-
-    target = graph.stream().filter((n) -> 
-      n.getTile().getType() == targetType).findAny().get();
-
-    // Set tiles for the floor and then add walls wherever floor is missing.
-    tiles = new Node[rows][cols];
-    for (Node node : graph) {
-      Tile t = node.getTile();
-      tiles[t.getRow()][t.getColumn()] = node;
-    }
-
-    for (int i = 0; i < rows; i++) {
-      for (int j = 0; j < cols; j++) {
-        if (tiles[i][j] == null) {
-          tiles[i][j] = new Node(new Tile(i, j, 0, Tile.Type.WALL));
-        }
-      }
+   * The open tiles whose gold has been picked up, by id.
+   * This is the only state of the tiles that changes during a game.
+   */
+  private final BitSet goldTaken;
+
+  /**
+   * The length of the shortest path from the entrance to the target,
+   * or -1 if it has not been computed yet.
+   */
+  private int entranceToTarget = -1;
+
+  /**
+   * The precomputed distances of this cavern, or null if it has none or they have
+   * not been loaded yet. Until they are asked for, distanceSource is what loads them
+   * (or null if there is nothing to load). See distanceTable().
+   */
+  private volatile DistanceTable distances;
+  private Supplier<DistanceTable> distanceSource;
+
+  /**
+   * Holds the lengths of the shortest paths from each open tile to the target, by id,
+   * or null if they have not been needed yet. It is shared by all the copies of a
+   * cavern, so that they are found once for all of them. See distancesToTarget().
+   */
+  private final AtomicReference<int[]> toTarget;
+
+  /**
+   * The working arrays of a search that no thread is using, or null. See takeSearch().
+   */
+  private final AtomicReference<PathSearch> spareSearch = new AtomicReference<>();
+
+  /**
+   * Constructor: an instance with the layout held by layout, in which no gold
+   * has been picked up.
+   */
+  Cavern(CavernStore layout) {
+    this(layout, new AtomicReference<>());
+  }
+
+  /**
+   * Constructor: an instance with the layout held by layout, in which no gold has
+   * been picked up, whose distances to the target are held by targetDistances.
+   */
+  private Cavern(CavernStore layout, AtomicReference<int[]> targetDistances) {
+    store = layout;
+    toTarget = targetDistances;
+    rows = store.getRowCount();
+    cols = store.getColumnCount();
+
+    // Open tiles are numbered 0..n-1 in row-major order, so that the id of a node is
+    // also its index in nodes.
+    final int n = store.count();
+    nodes = (n <= NODE_TABLE_LIMIT ? new Node[n] : null);
+    nodeMap = (nodes == null ? new ConcurrentHashMap<>() : null);
+    goldTaken = new BitSet();
+    graph = new NodeSet();
+
+    entrance = node(store.getEntranceId());
+    target = node(store.getTargetId());
+  }
+
+  /**
+   * Return a copy of this cavern as it was made, with no gold picked up. The copy
+   * shares the layout and the precomputed distances of this cavern, which never
+   * change, so making it takes time independent of the size of the cavern.
+   */
+  Cavern copy() {
+    Cavern c = new Cavern(store, toTarget);
+    c.entranceToTarget = entranceToTarget;
+    synchronized (this) {
+      c.distances = distances;
+      c.distanceSource = distanceSource;
     }
-    createEdges(tiles, edgeWeightGenerator);
+    return c;
   }
 
   /**
-   * Constructor: an instance using givenGraph, givenTiles, and target trgt.
+   * Return an instance with the open tiles of openCells, whose gold and the ordinals
+   * of whose types are given by gold and types (indexed by id), with the edges
+   * in givenEdges, and whose entrance and target have ids entranceId and targetId.
    * Preconditions:
-   * 1. {@code givenGraph} and {@code givenTiles} represent the same graph
-   * (i.e. {@code givenGraph} contains all non-floor nodes in
-   * {@code givenTiles} and edges are along the grid).
-   * 2. {@code trgt} is a node in {@code givenGraph}.
+   * 1. {@code gold} and {@code types} have an entry for every open tile of openCells.
+   * 2. Every edge in {@code givenEdges} joins (the ids of) two open tiles that are
+   * adjacent on the grid, and appears in both directions.
    */
-  private Cavern(Set<Node> givenGraph, Node[][] givenTiles, Node trgt) {
-    tiles = givenTiles;
-    rows = tiles.length;
-    cols = tiles[0].length;
-
-    graph = Collections.unmodifiableSet(givenGraph);
+  private static Cavern fromArrays(OpenCells openCells, int[] gold, byte[] types, 
+                                   EdgeBuffer givenEdges, int entranceId, int targetId) {
+    givenEdges.pack(openCells.count());
+    return new Cavern(new ArrayStore(openCells, gold, types, givenEdges.start, 
+                                     givenEdges.target, givenEdges.weight, 
+                                     entranceId, targetId));
+  }
 
-    entrance = graph.stream().filter((n) -> 
-      n.getTile().getType() == Tile.Type.ENTRANCE).findAny().get();
+  /**
+   * Return an instance with the open tiles of floor, laid out as in openCells,
+   * using the edges in givenEdges and the (unique) tile of type targetType as its target.
+   * Preconditions:
+   * 1. {@code openCells} is {@code floor.openCells()}.
+   * 2. Every edge in {@code givenEdges} joins (the ids of) two open tiles that are
+   * adjacent on the grid, and appears in both directions.
+   * 3. There is exactly one tile of type {@code targetType} in {@code floor}.
+   */
+  private static Cavern fromFloor(Floor floor, OpenCells openCells, EdgeBuffer givenEdges, 
+                                  Tile.Type targetType) {
+    final int n = openCells.count();
+    int[] gold = new int[n];
+    byte[] types = new byte[n];
+    int entranceId = -1;
+    int targetId = -1;
+    for (int i = 0; i < floor.size(); i++) {
+      int id = openCells.idAt(floor.getRow(i), floor.getColumn(i));
+      gold[id] = floor.getGold(i);
+      types[id] = (byte) floor.getType(i).ordinal();
+      if (floor.getType(i) == Tile.Type.ENTRANCE) {
+        entranceId = id;
+      }
+      if (floor.getType(i) == targetType) {
+        targetId = id;
+      }
+    }
+    return fromArrays(openCells, gold, types, givenEdges, entranceId, targetId);
+  }
 
-    target = trgt;
+  /**
+   * Return an instance with the open tiles of openCells, with gold[i] gold on the
+   * tile with id i, whose entrance has id entranceId and whose target, of type
+   * targetType, has id targetId. Every other tile is floor. Each pair of adjacent
+   * open tiles is joined by an edge of the weight given by pairWeights, in the order
+   * of createEdges(), where a weight of 0 means that there is no edge.
+   * Throw an IllegalArgumentException if the entrance and target are not valid.
+   */
+  static Cavern fromTiles(OpenCells openCells, int[] gold, int entranceId, int targetId,
+                          Tile.Type targetType, IntSupplier pairWeights) {
+    final int n = openCells.count();
+    if (entranceId < 0 || entranceId >= n || targetId < 0 || targetId >= n 
+        || (targetType == Tile.Type.ENTRANCE) != (entranceId == targetId)
+        || !targetType.isOpen() || targetType == Tile.Type.FLOOR) {
+      throw new IllegalArgumentException("fromTiles: invalid entrance or target");
+    }
+    byte[] types = new byte[n];
+    Arrays.fill(types, (byte) Tile.Type.FLOOR.ordinal());
+    types[entranceId] = (byte) Tile.Type.ENTRANCE.ordinal();
+    types[targetId] = (byte) targetType.ordinal();
+    return fromArrays(openCells, gold, types, createEdges(openCells, pairWeights), 
+                      entranceId, targetId);
   }
 
   /**
@@ -104,13 +222,34 @@ public class Cavern {
    * Use rand as a source of randomness for the cavern generation.
    */
   public static Cavern digExploreCavern(int rows, int cols, Random rand) {
+    return digExploreCavern(rows, cols, rand, DEFAULT_GENERATOR);
+  }
+
+  /**
+   * Return a new random Cavern of size (rows, cols) with no gold, dug by generator.
+   * All edges have weight 1, and an orb is a reasonable distance from the exit.
+   * Use rand as a source of randomness for the cavern generation.
+   */
+  public static Cavern digExploreCavern(int rows, int cols, Random rand, 
+                                        CavernGenerator generator) {
     int minOrbDist = minOrbDistance(rows, cols);
 
-    Cavern cavern = new Cavern(rows, cols, rand, () -> 1, () -> 0, Tile.Type.ORB);
-    while (cavern.minPathLengthToTarget(cavern.getEntrance()) < minOrbDist) {
-      cavern = new Cavern(rows, cols, rand, () -> 1, () -> 0, Tile.Type.ORB);
+    // The orb is placed on a tile that is already far enough from the entrance,
+    // so the cavern is only dug again if it has no such tile at all.
+    while (true) {
+      Floor floor = generateFloor(rows, cols, rand, generator, () -> 0);
+      OpenCells openCells = floor.openCells();
+      int[] depth = depths(floor, openCells);
+      int orb = chooseTarget(floor, openCells, depth, minOrbDist, rand);
+      if (orb >= 0) {
+        floor.setType(orb, Tile.Type.ORB);
+        Cavern cavern = fromFloor(floor, openCells, createEdges(openCells, () -> 1), 
+                                  Tile.Type.ORB);
+        // All edges have weight 1, so the depth of the orb is its distance from the entrance.
+        cavern.entranceToTarget = depth[openCells.idAt(floor.getRow(orb), floor.getColumn(orb))];
+        return cavern;
+      }
     }
-    return cavern;
   }
 
   /**
@@ -127,15 +266,50 @@ public class Cavern {
    */
   public static Cavern digEscapeCavern(int rows, int cols, int currentRow, 
                                        int currentCol, Random rand) {
-    Supplier<Integer> edgeWeightGen = () -> rand.nextInt(MAX_EDGE_WEIGHT) + 1;
-    Supplier<Integer> goldGen = () -> Cavern.generateGoldValue(rand);
-    Cavern potentialCavern = 
-        new Cavern(rows, cols, rand, edgeWeightGen, goldGen, Tile.Type.ENTRANCE);
-    while (potentialCavern.getTileAt(currentRow, currentCol).getType() != Tile.Type.FLOOR) {
-      potentialCavern = 
-        new Cavern(rows, cols, rand, edgeWeightGen, goldGen, Tile.Type.ENTRANCE);
-    }
-    return potentialCavern;
+    return digEscapeCavern(rows, cols, currentRow, currentCol, rand, DEFAULT_GENERATOR);
+  }
+
+  /**
+   * Return a new random Cavern of size (rows, cols) with random gold and edge weights,
+   * dug by generator. It is guaranteed that (currentRow, currentCol}) will be an open
+   * floor cell. Use rand as a source of randomness for the cavern generation.
+   */
+  public static Cavern digEscapeCavern(int rows, int cols, int currentRow, int currentCol,
+                                       Random rand, CavernGenerator generator) {
+    return digEscapeCavern(rows, cols, () -> currentRow * cols + currentCol, rand, generator);
+  }
+
+  /**
+   * Return a new random Cavern of size (rows, cols) with random gold and edge weights,
+   * in which the cell (row * cols + col) given by currentCell is an open floor cell.
+   * See digEscapeCavern(int, int, IntSupplier, Random, CavernGenerator).
+   */
+  static Cavern digEscapeCavern(int rows, int cols, IntSupplier currentCell, Random rand) {
+    return digEscapeCavern(rows, cols, currentCell, rand, DEFAULT_GENERATOR);
+  }
+
+  /**
+   * Return a new random Cavern of size (rows, cols) with random gold and edge weights,
+   * dug by generator, in which the cell (row * cols + col) given by currentCell is an
+   * open floor cell. currentCell is only called once the rest of the cavern has been
+   * dug, so it may wait for a position that is still being computed.
+   * Use rand as a source of randomness for the cavern generation.
+   */
+  static Cavern digEscapeCavern(int rows, int cols, IntSupplier currentCell, Random rand,
+                                CavernGenerator generator) {
+    IntSupplier edgeWeightGen = () -> rand.nextInt(MAX_EDGE_WEIGHT) + 1;
+    IntSupplier goldGen = () -> Cavern.generateGoldValue(rand);
+    Floor floor = generateFloor(rows, cols, rand, generator, goldGen);
+    // Rather than digging again until the current cell happens to be open,
+    // dig a passage from it to the nearest open tile if it is not.
+    digPassage(floor, currentCell.getAsInt(), goldGen);
+    OpenCells openCells = floor.openCells();
+    // Only an assertion: the depths are not needed, but depths() throws if a tile
+    // cannot be reached from the entrance, so that a CavernGenerator that digs an
+    // unconnected floor fails here rather than in the middle of a game.
+    depths(floor, openCells);
+    return fromFloor(floor, openCells, createEdges(openCells, edgeWeightGen), 
+                     Tile.Type.ENTRANCE);
   }
 
   /**
@@ -156,6 +330,8 @@ public class Cavern {
   /**
    * Convert nodeStrList into a Cavern and return it.
    * Precondition: The list of strings is of the format output by {@code serialize()}.
+   * Throw an IllegalArgumentException if an edge has a weight that is not in
+   * 1..Byte.MAX_VALUE.
    */
   public static Cavern deserialize(List<String> nodeStrList) {
     String extraInfo = nodeStrList.get(0);
@@ -165,24 +341,26 @@ public class Cavern {
     int cols = Integer.parseInt(dimensions[1]);
     final long targetId = Long.parseLong(infoParts[1].split(":")[1]);
 
-    Map<Long, Node> idToNode = new HashMap<>();
+    // The ids in the file need not be dense, since the cavern renumbers its nodes,
+    // so edges are recorded by the new id of the tile at each end instead.
+    Map<Long, Integer> idToIndex = new HashMap<>();
+    Floor floor = new Floor(rows, cols);
     for (String nodeStr : nodeStrList) {
       if (!nodeStr.equals(extraInfo)) {
 
         String nodeInfo = nodeStr.substring(0, nodeStr.indexOf("="));
         String[] splitInfo = nodeInfo.split(",");
 
-        long nodeId = Long.parseLong(splitInfo[0]);
-        Node n = new Node(nodeId,
-                           new Tile(Integer.parseInt(splitInfo[1]),
-                                     Integer.parseInt(splitInfo[2]),
-                                     Integer.parseInt(splitInfo[3]),
-                                     Tile.Type.valueOf(splitInfo[4])));
-        idToNode.put(nodeId, n);
+        idToIndex.put(Long.parseLong(splitInfo[0]), floor.size());
+        floor.add(Integer.parseInt(splitInfo[1]),
+                  Integer.parseInt(splitInfo[2]),
+                  Integer.parseInt(splitInfo[3]),
+                  Tile.Type.valueOf(splitInfo[4]));
       }
     }
 
-    Node[][] tiles = new Node[rows][cols];
+    OpenCells cells = floor.openCells();
+    EdgeBuffer edges = new EdgeBuffer();
     for (String nodeStr : nodeStrList) {
       // The first line is not a node, it's metadata, so skip it.
       if (nodeStr.equals(extraInfo)) {
@@ -190,154 +368,276 @@ public class Cavern {
       }
 
       String[] nodeAndEdgeInfo = nodeStr.split("=");
-      long nodeId = Long.parseLong(nodeAndEdgeInfo[0].split(",")[0]);
-
-      Node n = idToNode.get(nodeId);
-      tiles[n.getTile().getRow()][n.getTile().getColumn()] = n;
+      int i = idToIndex.get(Long.parseLong(nodeAndEdgeInfo[0].split(",")[0]));
       for (String edgeStr : nodeAndEdgeInfo[1].split(",")) {
         String[] idAndWeight = edgeStr.split("-");
-        long otherId = Long.parseLong(idAndWeight[0]);
+        int other = idToIndex.get(Long.parseLong(idAndWeight[0]));
         int weight = Integer.parseInt(idAndWeight[1]);
-        n.addEdge(new Edge(n, idToNode.get(otherId), weight));
+        edges.add(cells.idAt(floor.getRow(i), floor.getColumn(i)), 
+                  cells.idAt(floor.getRow(other), floor.getColumn(other)), weight);
       }
     }
 
-    for (int i = 0; i < rows; i++) {
-      for (int j = 0; j < cols; j++) {
-        if (tiles[i][j] == null) {
-          tiles[i][j] = new Node(new Tile(i, j, 0, Tile.Type.WALL));
-        }
-      }
-    }
-    return new Cavern(new HashSet<>(idToNode.values()), tiles, idToNode.get(targetId));
+    return fromFloor(floor, cells, edges, floor.getType(idToIndex.get(targetId)));
   }
 
   /**
-   * Add edges to the grid of nodes, tiles, between adjacent non-wall tiles,
-   * using edgeWeightGenerator to get edge weights.
-   * Precondition: all elements of {@code tiles} are non-null and
-   * the grid of nodes has no edges.
+   * Return the cavern in the text read from in, in the format output by
+   * {@code serialize()}. This is the same cavern as deserialize(List) returns for the
+   * lines of the text, but the text is parsed as it is read, in a single pass, and
+   * several times faster.
+   * Throw an IllegalArgumentException if the text is not in that format.
    */
-  private void createEdges(Node[][] tiles, Supplier<Integer> edgeWeightGenerator) {
-    for (int i = 0; i < tiles.length - 1; i++) {
-      for (int j = 0; j < tiles[i].length - 1; j++) {
-        Node node = tiles[i][j];
-        if (node.getTile().getType() == Tile.Type.WALL) {
+  public static Cavern deserialize(Reader in) throws IOException {
+    return CavernTextReader.read(in);
+  }
+
+  /**
+   * Return the edges between adjacent open cells of cells, already packed,
+   * using edgeWeightGenerator to get edge weights. A weight of 0 means that the
+   * two cells are not joined by an edge.
+   * The grid is walked twice, once to count the exits of each node and once to fill
+   * them in, so no edge is stored other than in its final place.
+   */
+  private static EdgeBuffer createEdges(OpenCells cells, IntSupplier edgeWeightGenerator) {
+    final int n = cells.count();
+    int[] start = new int[n + 1];
+    for (int i = 0; i < cells.getRowCount() - 1; i++) {
+      for (int j = 0; j < cells.getColumnCount() - 1; j++) {
+        int id = cells.idAt(i, j);
+        if (id < 0) {
+          continue;
+        }
+        int south = cells.idAt(i + 1, j);
+        if (south >= 0) {
+          start[id + 1]++;
+          start[south + 1]++;
+        }
+        int east = cells.idAt(i, j + 1);
+        if (east >= 0) {
+          start[id + 1]++;
+          start[east + 1]++;
+        }
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      start[i + 1] += start[i];
+    }
+
+    int[] target = new int[start[n]];
+    byte[] weight = new byte[start[n]];
+    int[] next = Arrays.copyOf(start, n);
+    boolean missing = false;
+    for (int i = 0; i < cells.getRowCount() - 1; i++) {
+      for (int j = 0; j < cells.getColumnCount() - 1; j++) {
+        int id = cells.idAt(i, j);
+        if (id < 0) {
           continue;
         }
 
-        final Point p = new Point(i, j);
-        Stream.of(Direction.SOUTH, Direction.EAST)
-            .map(Direction::getPoint)
-            .map(p::add)
-            .map((q) -> tiles[q.row][q.col])
-            .filter((m) -> m.getTile().getType() != Tile.Type.WALL)
-            .forEach((m) -> {
-              int weight = edgeWeightGenerator.get();
-              node.addEdge(new Edge(node, m, weight));
-              m.addEdge(new Edge(m, node, weight));
-            });
+        // South first, then east: the order in which the weights are drawn matters.
+        int south = cells.idAt(i + 1, j);
+        if (south >= 0) {
+          byte w = (byte) edgeWeightGenerator.getAsInt();
+          if (w != 0) {
+            target[next[id]] = south;
+            weight[next[id]++] = w;
+            target[next[south]] = id;
+            weight[next[south]++] = w;
+          } else {
+            missing = true;
+          }
+        }
+        int east = cells.idAt(i, j + 1);
+        if (east >= 0) {
+          byte w = (byte) edgeWeightGenerator.getAsInt();
+          if (w != 0) {
+            target[next[id]] = east;
+            weight[next[id]++] = w;
+            target[next[east]] = id;
+            weight[next[east]++] = w;
+          } else {
+            missing = true;
+          }
+        }
+      }
+    }
+
+    if (missing) {
+      // Close up the slots left for the missing edges. Exits only move down.
+      int filled = 0;
+      for (int i = 0; i < n; i++) {
+        int from = start[i];
+        start[i] = filled;
+        for (int k = from; k < next[i]; k++) {
+          target[filled] = target[k];
+          weight[filled++] = weight[k];
+        }
       }
+      start[n] = filled;
+      target = Arrays.copyOf(target, filled);
+      weight = Arrays.copyOf(weight, filled);
     }
+    return new EdgeBuffer(start, target, weight);
   }
 
   /**
-   * Return true iff p is on the grid.
+   * Dig a new random cavern of size (rows, cols) with generator, and return its floor,
+   * with the tiles in the order in which they were dug, starting with the entrance.
+   * Use goldGenerator to generate gold for each tile other than the entrance
+   * as it is dug.
    */
-  private boolean isValid(Point p) {
-    return p.row > 0 
-      && p.row < rows - 1 
-      && p.col > 0 
-      && p.col < cols - 1;
+  private static Floor generateFloor(int rows,
+                                     int cols,
+                                     Random rand,
+                                     CavernGenerator generator,
+                                     IntSupplier goldGenerator) {
+    Floor dug = new Floor(rows, cols);
+    dug.add(getEntranceCell(rows, cols, rand), 0, Tile.Type.ENTRANCE);
+    generator.dig(new Site(dug, goldGenerator), rand);
+    return dug;
   }
 
   /**
-   * Generate a new random graph that fits within the grid and return the set of nodes.
-   * Use goldGenerator to generate gold.
-   * If targetType is not ENTRANCE, make the target be some random node that is
-   * not the entrance.
+   * Return the number of steps from the entrance (the first tile of floor) to each
+   * open tile of floor, indexed by the ids given to them by openCells.
+   * Throw an IllegalStateException if some tile cannot be reached from the entrance.
+   * Precondition: {@code openCells} is {@code floor.openCells()}.
    */
-  private Set<Node> generateGraph(Random rand,
-                                  Tile.Type targetType,
-                                  Supplier<Integer> goldGenerator) {
-    List<Node> nodes = new ArrayList<>();
-
-    Set<Point> pointsSeen = new HashSet<>();
-    Set<Point> openPoints = new HashSet<>();
-    final Queue<Node> frontier = new ArrayDeque<>();
+  private static int[] depths(Floor floor, OpenCells openCells) {
+    final int cols = floor.getColumnCount();
+    final int n = openCells.count();
+    int[] depth = new int[n];
+    Arrays.fill(depth, -1);
+    int[] queue = new int[n];
+    queue[0] = floor.getCell(0);
+    depth[openCells.idAt(floor.getRow(0), floor.getColumn(0))] = 0;
+    int size = 1;
+    for (int head = 0; head < size; head++) {
+      final int row = queue[head] / cols;
+      final int col = queue[head] % cols;
+      final int d = depth[openCells.idAt(row, col)];
+      for (Direction dir : DIRECTIONS) {
+        int newRow = row + dir.dir.row;
+        int newCol = col + dir.dir.col;
+        if (newRow < 0 || newRow >= floor.getRowCount() || newCol < 0 || newCol >= cols) {
+          continue;
+        }
+        int id = openCells.idAt(newRow, newCol);
+        if (id >= 0 && depth[id] < 0) {
+          depth[id] = d + 1;
+          queue[size++] = newRow * cols + newCol;
+        }
+      }
+    }
+    if (size != n) {
+      throw new IllegalStateException("Cavern: " + (n - size) 
+                                      + " open tiles cannot be reached from the entrance");
+    }
+    return depth;
+  }
 
-    Point entrancePoint = getEntrancePoint(rand);
-    Node entrance = new Node(new Tile(entrancePoint.row, entrancePoint.col, 0, Tile.Type.ENTRANCE));
-    nodes.add(entrance);
+  /**
+   * Return the index in floor of a random tile that is not the entrance and is at
+   * least minDepth steps away from it, or -1 if there is no such tile.
+   * depth gives the number of steps to each tile, indexed by the ids of openCells.
+   */
+  private static int chooseTarget(Floor floor, OpenCells openCells, int[] depth, 
+                                  int minDepth, Random rand) {
+    int count = 0;
+    for (int i = 1; i < floor.size(); i++) {
+      if (depth[openCells.idAt(floor.getRow(i), floor.getColumn(i))] >= minDepth) {
+        count++;
+      }
+    }
+    if (count == 0) {
+      return -1;
+    }
+    int k = rand.nextInt(count);
+    for (int i = 1; i < floor.size(); i++) {
+      if (depth[openCells.idAt(floor.getRow(i), floor.getColumn(i))] >= minDepth && k-- == 0) {
+        return i;
+      }
+    }
+    throw new IllegalStateException("chooseTarget: target not found");
+  }
 
-    pointsSeen.add(entrancePoint);
-    openPoints.add(entrancePoint);
-    frontier.add(entrance);
-    while (!frontier.isEmpty()) {
-      Node node = frontier.remove();
-      Point p = new Point(node.getTile().getRow(), node.getTile().getColumn());
+  /**
+   * Make sure that the packed cell (row * cols + col) of dug is open, by digging
+   * the shortest passage of new floor from it to the nearest open tile if it is not.
+   * The passage never touches the border of the grid, so the entrance stays the only
+   * opening. Use goldGenerator to generate gold for the new tiles.
+   * Precondition: {@code cell} is not on the border of the grid, and some tile of
+   * {@code dug} is not on the border either.
+   */
+  private static void digPassage(Floor dug, int cell, IntSupplier goldGenerator) {
+    if (dug.isOpen(cell)) {
+      return;
+    }
 
-      // We want to make sure there's a way out if we can get one.
-      // This will prevent stupid degenerate graphs.
-      int existingExits = 0;
-      List<Point> newExits = new ArrayList<>();
-      for (Direction dir : Direction.values()) {
-        Point newPt = dir.getPoint().add(p);
-        if (isValid(newPt)) {
-          if (openPoints.contains(newPt)) {
-            existingExits++;
-          } else if (pointsSeen.add(newPt)) {
-            newExits.add(newPt);
+    // Breadth-first search through the walls: queue[i] was reached from queue[from[i]].
+    final int cols = dug.getColumnCount();
+    BitSet seen = new BitSet();
+    int[] queue = new int[64];
+    int[] from = new int[64];
+    int size = 1;
+    queue[0] = cell;
+    from[0] = -1;
+    seen.set(cell);
+    for (int head = 0; head < size; head++) {
+      final int row = queue[head] / cols;
+      final int col = queue[head] % cols;
+      for (Direction dir : DIRECTIONS) {
+        int newRow = row + dir.dir.row;
+        int newCol = col + dir.dir.col;
+        int newPt = newRow * cols + newCol;
+        if (!isValid(newRow, newCol, dug.getRowCount(), cols) || seen.get(newPt)) {
+          continue;
+        }
+        if (dug.isOpen(newPt)) {
+          // Open the passage, from its end next to newPt back to cell.
+          for (int i = head; i >= 0; i = from[i]) {
+            dug.add(queue[i], goldGenerator.getAsInt(), Tile.Type.FLOOR);
           }
+          return;
         }
-      }
-
-      int numberOfExits = newExits.size();
-      if (numberOfExits > 0) {
-        double modifiedDensity;
-        Point forcedExit;
-        // Modify the density function so that the expected number of open exits
-        // is the same even though we're forcing something to be open.
-        if (existingExits < 2) {
-          modifiedDensity = 
-            (numberOfExits == 1 ? 0.0 : (numberOfExits * DENSITY - 1) / (numberOfExits - 1));
-          forcedExit = newExits.get(rand.nextInt(newExits.size()));
-        } else {
-          modifiedDensity = DENSITY;
-          forcedExit = null;
+        if (size == queue.length) {
+          queue = Arrays.copyOf(queue, 2 * size);
+          from = Arrays.copyOf(from, 2 * size);
         }
-        newExits.stream()
-          .filter((q) -> q.equals(forcedExit) || rand.nextDouble() < modifiedDensity)
-          .peek(openPoints::add)
-          .map((q) -> new Node(new Tile(q.row, q.col, goldGenerator.get(), Tile.Type.FLOOR)))
-          .peek(frontier::add)
-          .forEach(nodes::add);
+        seen.set(newPt);
+        queue[size] = newPt;
+        from[size] = head;
+        size++;
       }
     }
+    throw new IllegalStateException("digPassage: there is no open tile to dig to");
+  }
 
-    if (targetType != Tile.Type.ENTRANCE) {
-      // Grab a random tile that's not the entrance and make it the target.
-      int targetIdx = rand.nextInt(nodes.size() - 1) + 1;
-      nodes.get(targetIdx).getTile().setType(targetType);
-    }
-
-    return Collections.unmodifiableSet(new HashSet<>(nodes));
+  /**
+   * Return true iff (row, col) is on the grid of size (rows, cols), and not on its border.
+   */
+  private static boolean isValid(int row, int col, int rows, int cols) {
+    return row > 0 
+      && row < rows - 1 
+      && col > 0 
+      && col < cols - 1;
   }
 
   /**
-   * Randomly determine and return the entrance to the cavern
-   * (the only non-wall tile along an edge of the grid).
+   * Randomly determine and return the (packed) cell of the entrance to a cavern
+   * of size (rows, cols) (the only non-wall tile along an edge of the grid).
    */
-  private Point getEntrancePoint(Random rand) {
+  private static int getEntranceCell(int rows, int cols, Random rand) {
     switch (rand.nextInt(4)) {
       case 0: // North wall
-        return new Point(rand.nextInt(rows - 2) + 1, 0);
+        return (rand.nextInt(rows - 2) + 1) * cols;
       case 1: // South wall
-        return new Point(rand.nextInt(rows - 2) + 1, cols - 1);
+        return (rand.nextInt(rows - 2) + 1) * cols + cols - 1;
       case 2: // West wall
-        return new Point(0, rand.nextInt(cols - 2) + 1);
+        return rand.nextInt(cols - 2) + 1;
       case 3: // East wall
-        return new Point(rows - 1, rand.nextInt(cols - 2) + 1);
+        return (rows - 1) * cols + rand.nextInt(cols - 2) + 1;
       default:
         throw new IllegalStateException("Unexpected random value!");
     }
@@ -347,7 +647,7 @@ public class Cavern {
    * Return the number of open floor tiles in this cavern (this is the size of the graph).
    */
   public int numOpenTiles() {
-    return graph.size();
+    return store.count();
   }
 
   /**
@@ -372,6 +672,239 @@ public class Cavern {
     return graph;
   }
 
+  /**
+   * Return the open node whose id is id.
+   * Ids are dense: the open tiles of a cavern are numbered 0..numOpenTiles()-1.
+   * Throw an IllegalArgumentException if no open node has that id.
+   */
+  public Node getNodeById(long id) {
+    if (id < 0 || id >= store.count()) {
+      throw new IllegalArgumentException("getNodeById: no open node with id " + id);
+    }
+    return node((int) id);
+  }
+
+  /**
+   * Return the open node whose id is i, creating it if it has not been asked for yet.
+   * Precondition: 0 <= i < numOpenTiles().
+   */
+  private Node node(int i) {
+    if (nodes == null) {
+      return nodeMap.computeIfAbsent(i, this::newNode);
+    }
+    // Node's fields are final, so a node read without the lock is fully built.
+    Node n = nodes[i];
+    if (n == null) {
+      synchronized (nodes) {
+        n = nodes[i];
+        if (n == null) {
+          n = newNode(i);
+          nodes[i] = n;
+        }
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Return a new node for the open tile with id i.
+   */
+  private Node newNode(int i) {
+    long cell = store.cellWithId(i);
+    return new Node(this, i, new Tile(this, i, (int) (cell / cols), (int) (cell % cols)));
+  }
+
+  /**
+   * Return the index of n in this cavern's graph (which is also its id),
+   * or -1 if n is not an open node of this cavern.
+   */
+  public int indexOf(Node n) {
+    long id = n.getId();
+    if (id < 0 || id >= store.count() 
+        || (nodes != null ? nodes[(int) id] : nodeMap.get((int) id)) != n) {
+      return -1;
+    }
+    return (int) id;
+  }
+
+  /**
+   * Return the layout of this cavern.
+   */
+  CavernStore store() {
+    return store;
+  }
+
+  /**
+   * Return the weight of the edge between the open nodes with ids i and j,
+   * or 0 if there is no such edge.
+   */
+  int weightBetween(int i, int j) {
+    for (int k = store.exitStart(i); k < store.exitStart(i + 1); k++) {
+      if (store.exitTarget(k) == j) {
+        return store.exitWeight(k);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Return the first exit slot of the open node with id i. The exits of the node are
+   * the slots k with exitStart(i) <= k < exitStart(i + 1) whose target is not -1.
+   */
+  int exitStart(int i) {
+    return store.exitStart(i);
+  }
+
+  /**
+   * Return the id of the node at the other end of exit slot k, or -1 if it is empty.
+   */
+  int exitTarget(int k) {
+    return store.exitTarget(k);
+  }
+
+  /**
+   * Return the weight of exit k.
+   */
+  int exitWeight(int k) {
+    return store.exitWeight(k);
+  }
+
+  /**
+   * Return the gold remaining on the open tile with id i.
+   */
+  int getGold(int i) {
+    return (goldTaken.get(i) ? 0 : store.getGold(i));
+  }
+
+  /**
+   * Return the gold originally on the open tile with id i (even if picked up).
+   */
+  int getOriginalGold(int i) {
+    return store.getGold(i);
+  }
+
+  /**
+   * Return the type of the open tile with id i.
+   */
+  Tile.Type getType(int i) {
+    return store.getType(i);
+  }
+
+  /**
+   * Set the gold on the open tile with id i to 0 and return the amount "picked up".
+   */
+  int takeGold(int i) {
+    final int result = getGold(i);
+    goldTaken.set(i);
+    return result;
+  }
+
+  /**
+   * Return the shape and the estimated memory footprint of this cavern as it is now:
+   * the nodes made so far, the gold picked up and the distances loaded count.
+   * This takes time linear in the number of open tiles.
+   */
+  public CavernStats getStats() {
+    final int n = store.count();
+    int[] degrees = new int[DIRECTIONS.length + 1];
+    int goldTiles = 0;
+    int goldRemaining = 0;
+    for (int i = 0; i < n; i++) {
+      int degree = 0;
+      for (int k = store.exitStart(i); k < store.exitStart(i + 1); k++) {
+        if (store.exitTarget(k) >= 0) {
+          degree++;
+        }
+      }
+      degrees[degree]++;
+      if (store.getGold(i) > 0) {
+        goldTiles++;
+        if (!goldTaken.get(i)) {
+          goldRemaining++;
+        }
+      }
+    }
+
+    // A node comes with its tile and its two views, and its edges once they are read.
+    final long nodeBytes = CavernStats.objectBytes(8 + 4 * CavernStats.REFERENCE)
+        + CavernStats.objectBytes(CavernStats.REFERENCE + 3 * 4)
+        + 2 * CavernStats.objectBytes(CavernStats.REFERENCE);
+    Collection<Node> made = (nodes != null ? Arrays.asList(nodes) : nodeMap.values());
+    int nodesMade = 0;
+    long edgeObjectBytes = 0;
+    for (Node node : made) {
+      if (node != null) {
+        nodesMade++;
+        edgeObjectBytes += node.edgeBytes();
+      }
+    }
+    long indexBytes = (nodes != null 
+        ? CavernStats.arrayBytes(nodes.length, CavernStats.REFERENCE)
+        // each entry of a map: the entry, its boxed key and its slot in the table
+        : nodesMade * (CavernStats.objectBytes(4 + 3 * CavernStats.REFERENCE) 
+                       + CavernStats.objectBytes(4) + 2 * CavernStats.REFERENCE));
+
+    DistanceTable table = distances;
+    int[] dist = toTarget.get();
+    PathSearch search = spareSearch.get();
+    return new CavernStats(rows, cols, n, degrees, goldTiles, goldRemaining, nodesMade,
+        store.tileBytes() + CavernStats.objectBytes(9) 
+            + CavernStats.arrayBytes(goldTaken.size() / 64, 8),
+        store.edgeBytes() + edgeObjectBytes,
+        nodesMade * nodeBytes + indexBytes,
+        (table == null ? 0 : table.retainedBytes())
+            + (dist == null || (table != null && table.sharesToTarget(dist))
+               ? 0 : CavernStats.arrayBytes(dist.length, 4))
+            + (search == null ? 0 : search.retainedBytes()),
+        store.mappedBytes());
+  }
+
+  /**
+   * Return the ids of the open tiles whose gold has been picked up.
+   */
+  BitSet getGoldTaken() {
+    return (BitSet) goldTaken.clone();
+  }
+
+  /**
+   * Make the open tiles whose ids are in taken those whose gold has been picked up.
+   * Throw an IllegalArgumentException if taken has an id that is not an open tile.
+   */
+  void setGoldTaken(BitSet taken) {
+    if (taken.length() > store.count()) {
+      throw new IllegalArgumentException("setGoldTaken: no open tile " + (taken.length() - 1));
+    }
+    goldTaken.clear();
+    goldTaken.or(taken);
+  }
+
+  /**
+   * Return the total amount of gold that has not been picked up yet.
+   */
+  public int totalRemainingGold() {
+    int total = 0;
+    for (int i = 0; i < store.count(); i++) {
+      total += store.getGold(i);
+    }
+    for (int i = goldTaken.nextSetBit(0); i >= 0; i = goldTaken.nextSetBit(i + 1)) {
+      total -= store.getGold(i);
+    }
+    return total;
+  }
+
+  /**
+   * Return the nodes whose tiles still have gold on them, in order of id.
+   */
+  public List<Node> getGoldNodes() {
+    List<Node> result = new ArrayList<>();
+    for (int i = 0; i < store.count(); i++) {
+      if (store.getGold(i) > 0 && !goldTaken.get(i)) {
+        result.add(node(i));
+      }
+    }
+    return result;
+  }
+
   /**
    * Return the node corresponding to the entrance to the cavern.
    */
@@ -388,58 +921,279 @@ public class Cavern {
 
   /**
    * Return the Tile information for (r, c).
+   * Walls are not stored, so the tile of a wall is created the first time it is asked
+   * for (by this method or getNodeAt()); later calls return the same tile.
    * Precondition: ({@code r}, {@code c}) must be in the grid.
    */
   public Tile getTileAt(int r, int c) {
-    return tiles[r][c].getTile();
+    int id = store.idAt(r, c);
+    return (id < 0 ? wall(r, c).getTile() : node(id).getTile());
+  }
+
+  /**
+   * Return the type of the tile at (r, c).
+   * Unlike {@code getTileAt(r, c).getType()}, this never creates a tile.
+   * Precondition: ({@code r}, {@code c}) must be in the grid.
+   */
+  public Tile.Type getTypeAt(int r, int c) {
+    int id = store.idAt(r, c);
+    return (id < 0 ? Tile.Type.WALL : getType(id));
+  }
+
+  /**
+   * Return the gold remaining on the tile at (r, c).
+   * Unlike {@code getTileAt(r, c).getGold()}, this never creates a tile.
+   * Precondition: ({@code r}, {@code c}) must be in the grid.
+   */
+  public int getGoldAt(int r, int c) {
+    int id = store.idAt(r, c);
+    return (id < 0 ? 0 : getGold(id));
   }
 
   /**
    * Return the node at position (r, c).
+   * Walls are not part of the graph: the node of a wall has no edges and a negative id
+   * (which depends only on its position), and is created the first time it is asked
+   * for (by this method or getTileAt()); later calls return the same node.
    * Precondition: ({@code r}, {@code c}) must be in the grid.
    */
   public Node getNodeAt(int r, int c) {
-    return tiles[r][c];
+    int id = store.idAt(r, c);
+    return (id < 0 ? wall(r, c) : node(id));
   }
 
   /**
-   * Package-private implementation of Dijkstra's algorithm that returns
-   * only the minimum distance between the given node and the target node for
-   * this cavern (no path).
-   * Precondition: {@code start} must be a node in this cavern.
+   * Return the node of the wall at (r, c), creating it if it has not been asked for yet.
+   * Precondition: there is a wall at ({@code r}, {@code c}).
    */
-  int minPathLengthToTarget(Node start) {
+  private Node wall(int r, int c) {
+    long cell = (long) r * cols + c;
+    return walls.computeIfAbsent(cell, k -> new Node(this, -1 - k, new Tile(this, -1, r, c)));
+  }
 
-    InternalMinHeap<Node> frontier = new InternalMinHeap<>();
+  /**
+   * Precompute the lengths of the shortest paths from every open tile to the target,
+   * which then need no search, and which are saved with this cavern by CavernCodec.
+   */
+  public void precomputeDistances() {
+    precomputeDistances(Collections.emptyList());
+  }
 
-    /** Contains an entry for each node in the Settled and Frontier sets. */
-    Map<Long, Integer> pathWeights = new HashMap<>();
+  /**
+   * Precompute the lengths of the shortest paths from every open tile to the target,
+   * and between each pair of the nodes of terminals (such as the entrance, the target
+   * and the nodes with gold). These then need no search, and are saved with this
+   * cavern by CavernCodec. This takes one search for each terminal.
+   * Throw an IllegalArgumentException if a terminal is not an open node of this cavern.
+   */
+  public void precomputeDistances(Collection<Node> terminals) {
+    DistanceTable table = DistanceTable.compute(this, terminals);
+    synchronized (this) {
+      distances = table;
+      distanceSource = null;
+    }
+  }
 
-    pathWeights.put(start.getId(), 0);
-    frontier.add(start, 0);
-    /// invariant: as in lecture notes
-    while (!frontier.isEmpty()) {
-      Node f = frontier.poll();
-      if (f.equals(target)) {
-        return pathWeights.get(f.getId());
+  /**
+   * Return true iff this cavern has precomputed distances, computed by
+   * precomputeDistances() or loaded with it, that are valid for it.
+   */
+  public boolean hasPrecomputedDistances() {
+    return distanceTable() != null;
+  }
+
+  /**
+   * Make source the loader of the precomputed distances of this cavern, which is
+   * called the first time they are needed. A table that source cannot load (throwing
+   * an IllegalArgumentException), or whose checksum is not that of this cavern,
+   * is ignored, and distances are searched for instead.
+   */
+  synchronized void setDistanceSource(Supplier<DistanceTable> source) {
+    distances = null;
+    distanceSource = source;
+  }
+
+  /**
+   * Return the precomputed distances of this cavern, loading them if they have not
+   * been loaded yet, or null if there are none that are valid for it.
+   */
+  DistanceTable distanceTable() {
+    DistanceTable table = distances;
+    if (table == null && distanceSource != null) {
+      synchronized (this) {
+        table = distances;
+        if (table == null && distanceSource != null) {
+          try {
+            table = distanceSource.get();
+          } catch (IllegalArgumentException e) {
+            table = null; // a corrupt table is as good as none
+          }
+          distanceSource = null;
+          if (table != null && table.getChecksum() != DistanceTable.checksum(this)) {
+            table = null;
+          }
+          distances = table;
+        }
       }
+    }
+    return table;
+  }
 
-      int numberOfWeight = pathWeights.get(f.getId());
+  /**
+   * Return a PathSearch over this cavern for the calling thread to use alone, which it
+   * should give back with releaseSearch() when it is done. The same one is handed out
+   * again and again, so searches allocate nothing, unless several threads search at
+   * once, when the others get one of their own.
+   */
+  PathSearch takeSearch() {
+    PathSearch search = spareSearch.getAndSet(null);
+    return (search != null ? search : new PathSearch(store));
+  }
+
+  /**
+   * Give back search, taken with takeSearch(), for another search to use.
+   */
+  void releaseSearch(PathSearch search) {
+    spareSearch.set(search);
+  }
 
-      for (Edge e : f.getExits()) {
-        Node w = e.getOther(f);
-        int weightThroughN = numberOfWeight + e.length();
-        Integer existingWeight = pathWeights.get(w.getId());
-        if (existingWeight == null) {
-          pathWeights.put(w.getId(), weightThroughN);
-          frontier.add(w, weightThroughN);
-        } else if (weightThroughN < existingWeight) {
-          pathWeights.put(w.getId(), weightThroughN);
-          frontier.changePriority(w, weightThroughN);
+  /**
+   * Return the length of the shortest path from the entrance to the target.
+   * This is known without a search for caverns made by {@code digExploreCavern()};
+   * for others (such as caverns that are loaded) it is found by minPathLength(), which
+   * only searches until it meets the target, and kept.
+   */
+  int minPathLengthFromEntrance() {
+    if (entranceToTarget < 0) {
+      int length = minPathLength(entrance, target);
+      if (length == Integer.MAX_VALUE) {
+        throw new IllegalStateException("The search should always reach the desired location.");
+      }
+      entranceToTarget = length;
+    }
+    return entranceToTarget;
+  }
+
+  /**
+   * Package-private method that returns only the minimum distance between the
+   * given node and the target node for this cavern (no path). After the first call,
+   * this reads the distance from an array, with no search.
+   * Precondition: {@code start} must be a node in this cavern.
+   */
+  int minPathLengthToTarget(Node start) {
+    DistanceTable table = distanceTable();
+    if (table != null) {
+      return table.toTarget(indexOf(start));
+    }
+
+    int length = distancesToTarget()[indexOf(start)];
+    if (length == Integer.MAX_VALUE) {
+      throw new IllegalStateException("The search should always reach the desired location.");
+    }
+    return length;
+  }
+
+  /**
+   * Return the lengths of the shortest paths from every open tile to the target,
+   * indexed by id: Integer.MAX_VALUE for a tile that cannot reach it. The target never
+   * changes and the cavern is undirected, so they are found by one search from the
+   * target, the first time this cavern or a copy of it needs them, and kept.
+   * The array must not be changed.
+   */
+  int[] distancesToTarget() {
+    int[] dist = toTarget.get();
+    if (dist == null) {
+      synchronized (toTarget) {
+        dist = toTarget.get();
+        if (dist == null) {
+          dist = distancesFrom(store.getTargetId());
+          toTarget.set(dist);
         }
       }
     }
-    throw new IllegalStateException("The above loop should always reach the desired location.");
+    return dist;
+  }
+
+  /**
+   * Return the length of the shortest path from start to end, or Integer.MAX_VALUE if
+   * there is none. If it is already known, because both are terminals of the distance
+   * table of this cavern or one is the target and the distances to the target have been
+   * found, it is read; otherwise it is searched for, from both ends at once or by A*
+   * (see PathSearch).
+   * Precondition: {@code start} and {@code end} are open nodes in this cavern.
+   */
+  int minPathLength(Node start, Node end) {
+    int i = indexOf(start);
+    int j = indexOf(end);
+    int known = knownLength(i, j);
+    if (known >= 0) {
+      return known;
+    }
+    // The search works on ids alone, so it creates no nodes however large the cavern.
+    PathSearch search = takeSearch();
+    try {
+      return search.distance(i, j);
+    } finally {
+      releaseSearch(search);
+    }
+  }
+
+  /**
+   * Return the length of the shortest path between the open tiles with ids i and j if
+   * it can be read from the distance table or the distances to the target, without a
+   * search (Integer.MAX_VALUE if there is no path), and -1 otherwise.
+   */
+  private int knownLength(int i, int j) {
+    DistanceTable table = distanceTable();
+    int targetId = store.getTargetId();
+    if (table != null) {
+      if (i == targetId || j == targetId) {
+        return table.toTarget(i == targetId ? j : i);
+      }
+      return table.between(i, j);
+    }
+    int[] dist = toTarget.get();
+    if (dist != null && (i == targetId || j == targetId)) {
+      return dist[i == targetId ? j : i];
+    }
+    return -1;
+  }
+
+  /**
+   * Return the nodes of a shortest path from start to end, both included, in order,
+   * or an empty list if there is none. Its length is minPathLength(start, end).
+   * Precondition: {@code start} and {@code end} are open nodes in this cavern.
+   */
+  List<Node> shortestPath(Node start, Node end) {
+    int[] ids;
+    PathSearch search = takeSearch();
+    try {
+      ids = search.path(indexOf(start), indexOf(end));
+    } finally {
+      releaseSearch(search);
+    }
+    if (ids == null) {
+      return Collections.emptyList();
+    }
+    List<Node> path = new ArrayList<>(ids.length);
+    for (int id : ids) {
+      path.add(node(id));
+    }
+    return path;
+  }
+
+  /**
+   * Return the lengths of the shortest paths from the open tile with id source to
+   * every open tile, indexed by id: Integer.MAX_VALUE for a tile that cannot be reached.
+   * This is Dijkstra's algorithm run over the whole cavern.
+   */
+  int[] distancesFrom(int source) {
+    PathSearch search = takeSearch();
+    try {
+      return search.distancesFrom(source);
+    } finally {
+      releaseSearch(search);
+    }
   }
 
   /**
@@ -447,19 +1201,323 @@ public class Cavern {
    * The list can be converted back into a {@code Cavern} using {@code deserialize()}.
    */
   public List<String> serialize() {
-    List<String> nodes = new ArrayList<>();
-    nodes.add(rows + ":" + cols + ",trgt:" + target.getId());
-    for (Node n : graph) {
-      Tile t = n.getTile();
-      String nodeStr = n.getId() + "," + t.getRow() + "," + t.getColumn() 
-          + "," + t.getGold() + "," + t.getType().name();
+    List<String> lines = new ArrayList<>();
+    lines.add(rows + ":" + cols + ",trgt:" + target.getId());
+    for (int i = 0; i < store.count(); i++) {
+      long cell = store.cellWithId(i);
+      String nodeStr = i + "," + cell / cols + "," + cell % cols 
+          + "," + getGold(i) + "," + getType(i).name();
+
+      StringBuilder edges = new StringBuilder();
+      for (int k = store.exitStart(i); k < store.exitStart(i + 1); k++) {
+        if (store.exitTarget(k) < 0) {
+          continue;
+        }
+        if (edges.length() > 0) {
+          edges.append(',');
+        }
+        edges.append(store.exitTarget(k)).append('-').append(store.exitWeight(k));
+      }
+      lines.add(nodeStr + "=" + edges);
+    }
+    return lines;
+  }
+
+  /**
+   * An instance is an unmodifiable view of the open nodes of this cavern,
+   * in order of id. Nodes are created as the view reaches them.
+   */
+  private class NodeSet extends AbstractSet<Node> {
+    @Override
+    public Iterator<Node> iterator() {
+      return new Iterator<Node>() {
+        private int next;
+
+        @Override
+        public boolean hasNext() {
+          return next < store.count();
+        }
+
+        @Override
+        public Node next() {
+          if (next >= store.count()) {
+            throw new NoSuchElementException();
+          }
+          return node(next++);
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return store.count();
+    }
+
+    @Override
+    public boolean contains(Object ob) {
+      return ob instanceof Node && indexOf((Node) ob) >= 0;
+    }
+  }
+
+  /**
+   * An instance is the floor of a cavern of size (rows, cols) that is being built:
+   * its open tiles, in the order in which they were added, given by their position,
+   * gold and type.
+   */
+  private static class Floor {
+    private final int rows;
+    private final int cols;
+    private final BitSet open = new BitSet();
+    private int[] cells = new int[64];
+    private int[] golds = new int[64];
+    private byte[] types = new byte[64];
+    private int size;
+
+    /**
+     * Constructor: an empty floor for a grid of size (rws, cls).
+     */
+    Floor(int rws, int cls) {
+      rows = rws;
+      cols = cls;
+    }
+
+    /**
+     * Add an open tile at (r, c) with g gold and type t.
+     */
+    void add(int r, int c, int g, Tile.Type t) {
+      add(r * cols + c, g, t);
+    }
+
+    /**
+     * Add an open tile at the packed cell (row * cols + col) with g gold and type t.
+     */
+    void add(int cell, int g, Tile.Type t) {
+      if (size == cells.length) {
+        cells = Arrays.copyOf(cells, 2 * size);
+        golds = Arrays.copyOf(golds, 2 * size);
+        types = Arrays.copyOf(types, 2 * size);
+      }
+      open.set(cell);
+      cells[size] = cell;
+      golds[size] = g;
+      types[size] = (byte) t.ordinal();
+      size++;
+    }
+
+    /**
+     * Return the number of rows in the grid.
+     */
+    int getRowCount() {
+      return rows;
+    }
+
+    /**
+     * Return the number of columns in the grid.
+     */
+    int getColumnCount() {
+      return cols;
+    }
+
+    /**
+     * Return true iff a tile has been added at the packed cell (row * cols + col).
+     */
+    boolean isOpen(int cell) {
+      return open.get(cell);
+    }
+
+    /**
+     * Return the number of tiles that have been added.
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * Return the packed cell (row * cols + col) of the ith tile added.
+     */
+    int getCell(int i) {
+      return cells[i];
+    }
+
+    /**
+     * Return the row of the ith tile added.
+     */
+    int getRow(int i) {
+      return cells[i] / cols;
+    }
+
+    /**
+     * Return the column of the ith tile added.
+     */
+    int getColumn(int i) {
+      return cells[i] % cols;
+    }
+
+    /**
+     * Return the gold on the ith tile added.
+     */
+    int getGold(int i) {
+      return golds[i];
+    }
+
+    /**
+     * Return the type of the ith tile added.
+     */
+    Tile.Type getType(int i) {
+      return TILE_TYPES[types[i]];
+    }
 
-      String edges = n.getExits().stream()
-                       .map((e) -> e.getOther(n).getId() + "-" + e.length())
-                       .collect(Collectors.joining(","));
-      nodes.add(nodeStr + "=" + edges);
+    /**
+     * Change the type of the ith tile added to t.
+     */
+    void setType(int i, Tile.Type t) {
+      types[i] = (byte) t.ordinal();
+    }
+
+    /**
+     * Return the open cells of this floor.
+     */
+    OpenCells openCells() {
+      return new OpenCells(rows, cols, open);
+    }
+  }
+
+  /**
+   * An instance is the site given to a CavernGenerator: a view of a floor that is
+   * being dug, which puts gold on each tile as it is opened.
+   */
+  private static class Site implements CavernGenerator.Site {
+    private final Floor floor;
+    private final IntSupplier goldGenerator;
+
+    /**
+     * Constructor: a site that opens tiles on f, with gold from goldGen.
+     * The first tile of f is the entrance.
+     */
+    Site(Floor f, IntSupplier goldGen) {
+      floor = f;
+      goldGenerator = goldGen;
+    }
+
+    @Override
+    public int getRowCount() {
+      return floor.getRowCount();
+    }
+
+    @Override
+    public int getColumnCount() {
+      return floor.getColumnCount();
+    }
+
+    @Override
+    public int getEntranceRow() {
+      return floor.getRow(0);
+    }
+
+    @Override
+    public int getEntranceColumn() {
+      return floor.getColumn(0);
+    }
+
+    @Override
+    public boolean isInterior(int row, int col) {
+      return isValid(row, col, floor.getRowCount(), floor.getColumnCount());
+    }
+
+    @Override
+    public boolean isOpen(int row, int col) {
+      return floor.isOpen(row * floor.getColumnCount() + col);
+    }
+
+    @Override
+    public void open(int row, int col) {
+      if (!isInterior(row, col)) {
+        throw new IllegalArgumentException("open: (" + row + ", " + col 
+                                           + ") is not in the interior of the cavern");
+      }
+      int cell = row * floor.getColumnCount() + col;
+      if (!floor.isOpen(cell)) {
+        floor.add(cell, goldGenerator.getAsInt(), Tile.Type.FLOOR);
+      }
+    }
+  }
+
+  /**
+   * An instance accumulates the directed edges of a graph, given by the ids of the
+   * nodes at each end, and packs them into compressed-sparse-row form.
+   */
+  private static class EdgeBuffer {
+    private int[] from = new int[64];
+    private int[] to = new int[64];
+    private byte[] weights = new byte[64];
+    private int size;
+
+    /** The packed form, set by pack(). */
+    private int[] start;
+    private int[] target;
+    private byte[] weight;
+
+    /**
+     * Constructor: an empty buffer.
+     */
+    EdgeBuffer() {
+    }
+
+    /**
+     * Constructor: a buffer whose edges are already packed into
+     * (st, tgt, wt), as pack() would have packed them.
+     */
+    EdgeBuffer(int[] st, int[] tgt, byte[] wt) {
+      start = st;
+      target = tgt;
+      weight = wt;
+    }
+
+    /**
+     * Add an edge of weight w from node src to node dst.
+     * Throw an IllegalArgumentException if w is not in 1..Byte.MAX_VALUE, the weights
+     * an edge can have.
+     */
+    void add(int src, int dst, int w) {
+      if (w < 1 || w > Byte.MAX_VALUE) {
+        throw new IllegalArgumentException("add: edge weight " + w + " is not in 1.."
+                                           + Byte.MAX_VALUE);
+      }
+      if (size == from.length) {
+        from = Arrays.copyOf(from, 2 * size);
+        to = Arrays.copyOf(to, 2 * size);
+        weights = Arrays.copyOf(weights, 2 * size);
+      }
+      from[size] = src;
+      to[size] = dst;
+      weights[size] = (byte) w;
+      size++;
+    }
+
+    /**
+     * Pack the edges for a graph of n nodes.
+     * The exits of each node keep the order in which they were added.
+     */
+    void pack(int n) {
+      if (start != null) {
+        return;
+      }
+      start = new int[n + 1];
+      target = new int[size];
+      weight = new byte[size];
+      for (int k = 0; k < size; k++) {
+        start[from[k] + 1]++;
+      }
+      for (int i = 0; i < n; i++) {
+        start[i + 1] += start[i];
+      }
+      int[] next = Arrays.copyOf(start, n);
+      for (int k = 0; k < size; k++) {
+        int slot = next[from[k]]++;
+        target[slot] = to[k];
+        weight[slot] = weights[k];
+      }
     }
-    return nodes;
   }
 
   /**
@@ -470,6 +1528,18 @@ public class Cavern {
 
     private final Point dir;
 
+    /**
+     * The direction of each step (dRow, dCol), for dRow and dCol in -1..1, at index
+     * 3 * (dRow + 1) + (dCol + 1); null where that is not a step along the grid.
+     */
+    private static final Direction[] BY_STEP = new Direction[9];
+
+    static {
+      for (Direction d : values()) {
+        BY_STEP[3 * (d.dir.row + 1) + (d.dir.col + 1)] = d;
+      }
+    }
+
     /**
      * Constructor: an instance indirection (row, col).
      */
@@ -483,6 +1553,31 @@ public class Cavern {
     public Point getPoint() {
       return dir;
     }
+
+    /**
+     * Return the change in row of a step in this direction.
+     */
+    int getRowStep() {
+      return dir.row;
+    }
+
+    /**
+     * Return the change in column of a step in this direction.
+     */
+    int getColumnStep() {
+      return dir.col;
+    }
+
+    /**
+     * Return the direction of a single step of (dRow, dCol) along the grid,
+     * or null if (dRow, dCol) is not such a step.
+     */
+    static Direction of(int dRow, int dCol) {
+      if (dRow < -1 || dRow > 1 || dCol < -1 || dCol > 1) {
+        return null;
+      }
+      return BY_STEP[3 * (dRow + 1) + (dCol + 1)];
+    }
   }
 
   /**
@@ -499,29 +1594,5 @@ public class Cavern {
       row = r;
       col = c;
     }
-
-    /**
-     * Return a new point, which is p added to this point.
-     */
-    public Point add(Point p) {
-      return new Point(row + p.row, col + p.col);
-    }
-
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) { 
-        return true; 
-      }
-      if (!(o instanceof Point)) { 
-        return false; 
-      }
-      Point p = (Point) o;
-      return p.row == row && p.col == col;
-    }
-
-    @Override
-    public int hashCode() {
-      return Objects.hash(row, col);
-    }
   }
 }
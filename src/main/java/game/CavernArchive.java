@@ -0,0 +1,376 @@
+package game;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An instance is an archive of the caverns of many games in a single file: for each
+ * seed, its explore and escape caverns encoded by CavernCodec, one after the other.
+ * An index after them gives the offset of the caverns of each seed, so the caverns of
+ * one game are loaded with a single positioned read, however large the archive.
+ * <p>
+ * The file is, with all numbers big-endian:
+ * <pre>
+ *   int MAGIC, byte VERSION, 3 bytes padding, long offset of the index
+ *   the caverns of each game, as encode() would encode the explore then the escape
+ *     cavern, and the index, which may be among them
+ *   the index: int number of games, int MAGIC, and for each game, in the order they
+ *     were added, long seed, long offset of its caverns, int length of each of its
+ *     two encodings
+ * </pre>
+ * In version 2 the index is always after every game; version 3 files are read too.
+ * <p>
+ * An archive opened with openForAppend() can have games added to it. They are written
+ * at the end of the file, and the index in use is left as it is, so the archive stays
+ * readable, with the games it had, while games are added. flush() or close() writes a
+ * new index, makes sure that it and the games are on the disk, and only then changes
+ * the offset in the header to point to it. So if the program stops while games are
+ * being added, the archive still has every game of the last index written; anything
+ * after the last game or index in use is ignored, and written over by the next games.
+ * <p>
+ * The new index is never written over the one in use, but it is written over the one
+ * before, which is no longer used, if that has room. Otherwise it is written at the end
+ * of the file, with room for twice as many games. So however often the archive is
+ * flushed, the space taken by indexes is at most a few times that of the last one, and
+ * each flush writes only the index and the games added since the last.
+ * <p>
+ * Games may be loaded from several threads at once; adding games may not be.
+ */
+public final class CavernArchive implements Closeable {
+  /**
+   * The first four bytes of an archive, and the second four of its index: "CAVA".
+   */
+  public static final int MAGIC = 0x43415641;
+  /**
+   * The version of the format written by this class.
+   */
+  public static final int VERSION = 3;
+  /**
+   * The version of the format in which the index always follows the games.
+   */
+  private static final int SEQUENTIAL_INDEX_VERSION = 2;
+  private static final int HEADER_SIZE = 16;
+  private static final int INDEX_HEADER_SIZE = 8;
+  private static final int ENTRY_SIZE = 24;
+
+  private final FileChannel channel;
+  private final boolean writable;
+
+  /**
+   * The games of the archive, in the order they were added: the caverns of game k,
+   * with seed seeds[k], are encoded in exploreLengths[k] + escapeLengths[k] bytes
+   * from offsets[k]. entryOf maps each seed to its game.
+   */
+  private long[] seeds = new long[16];
+  private long[] offsets = new long[16];
+  private int[] exploreLengths = new int[16];
+  private int[] escapeLengths = new int[16];
+  private int count;
+  private final Map<Long, Integer> entryOf = new HashMap<>();
+
+  /**
+   * The offset of the end of the caverns of the last game, or of the room kept for an
+   * index if that is later, where the caverns of the next game are written.
+   */
+  private long end = HEADER_SIZE;
+  /**
+   * The offset of the index in use, or -1 if there is none yet, and the number of
+   * bytes from there that are kept for it.
+   */
+  private long indexOffset = -1;
+  private long indexRoom;
+  /**
+   * The offset of the index that was in use before it, or -1 if there is none, and
+   * the number of bytes kept for it. The next index is written there if it fits.
+   */
+  private long spareOffset = -1;
+  private long spareRoom;
+  /**
+   * True iff games have been added since the index was last written.
+   */
+  private boolean dirty;
+
+  /**
+   * Constructor: an instance over ch, which is open for writing iff canWrite is true.
+   */
+  private CavernArchive(FileChannel ch, boolean canWrite) {
+    channel = ch;
+    writable = canWrite;
+  }
+
+  /**
+   * Return the archive in the file at path, open for loading games only.
+   * Throw an IllegalArgumentException if the file is not an archive.
+   */
+  public static CavernArchive open(Path path) throws IOException {
+    FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+    CavernArchive archive = new CavernArchive(ch, false);
+    try {
+      archive.readIndex();
+    } catch (IOException | RuntimeException e) {
+      ch.close();
+      throw e;
+    }
+    return archive;
+  }
+
+  /**
+   * Return the archive in the file at path, open for loading games and adding them,
+   * creating an empty one if there is no such file.
+   * Throw an IllegalArgumentException if the file exists but is not an archive.
+   */
+  public static CavernArchive openForAppend(Path path) throws IOException {
+    FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    CavernArchive archive = new CavernArchive(ch, true);
+    try {
+      if (ch.size() == 0) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put((byte) VERSION).putLong(8, HEADER_SIZE).rewind();
+        archive.writeFully(header, 0);
+        archive.dirty = true;
+        archive.flush();
+      } else {
+        archive.readIndex();
+      }
+    } catch (IOException | RuntimeException e) {
+      ch.close();
+      throw e;
+    }
+    return archive;
+  }
+
+  /**
+   * Read the header and index of the archive.
+   * Throw an IllegalArgumentException if they are not valid.
+   */
+  private void readIndex() throws IOException {
+    long size = channel.size();
+    if (size < HEADER_SIZE + INDEX_HEADER_SIZE) {
+      throw new IllegalArgumentException("CavernArchive: not an archive");
+    }
+    ByteBuffer header = readFully(0, HEADER_SIZE);
+    int version = (header.getInt() == MAGIC ? header.get() : -1);
+    if (version != VERSION && version != SEQUENTIAL_INDEX_VERSION) {
+      throw new IllegalArgumentException("CavernArchive: not an archive");
+    }
+    indexOffset = header.getLong(8);
+    if (indexOffset < HEADER_SIZE || indexOffset > size - INDEX_HEADER_SIZE) {
+      throw new IllegalArgumentException("CavernArchive: invalid index");
+    }
+    ByteBuffer indexHeader = readFully(indexOffset, INDEX_HEADER_SIZE);
+    int n = indexHeader.getInt();
+    if (indexHeader.getInt() != MAGIC || n < 0
+        || indexOffset + INDEX_HEADER_SIZE + (long) n * ENTRY_SIZE > size) {
+      throw new IllegalArgumentException("CavernArchive: invalid index");
+    }
+
+    // Only the room the index takes is known; any more that was kept for it is lost.
+    indexRoom = INDEX_HEADER_SIZE + (long) n * ENTRY_SIZE;
+    end = indexOffset + indexRoom;
+    ByteBuffer index = readFully(indexOffset + INDEX_HEADER_SIZE, n * ENTRY_SIZE);
+    for (int k = 0; k < n; k++) {
+      long seed = index.getLong();
+      long offset = index.getLong();
+      int exploreLength = index.getInt();
+      int escapeLength = index.getInt();
+      long gameEnd = offset + exploreLength + escapeLength;
+      if (offset < HEADER_SIZE || exploreLength <= 0 || escapeLength <= 0 || gameEnd > size
+          || gameEnd > indexOffset && offset < indexOffset + indexRoom) {
+        throw new IllegalArgumentException("CavernArchive: invalid index entry " + k);
+      }
+      addEntry(seed, offset, exploreLength, escapeLength);
+      end = Math.max(end, gameEnd);
+    }
+  }
+
+  /**
+   * Record that the caverns of the game with seed, encoded in exploreLength and
+   * escapeLength bytes, start at offset.
+   * Throw an IllegalArgumentException if the archive already has a game with seed.
+   */
+  private void addEntry(long seed, long offset, int exploreLength, int escapeLength) {
+    if (entryOf.containsKey(seed)) {
+      throw new IllegalArgumentException("CavernArchive: seed " + seed + " is already "
+                                         + "in the archive");
+    }
+    if (count == seeds.length) {
+      seeds = Arrays.copyOf(seeds, 2 * count);
+      offsets = Arrays.copyOf(offsets, 2 * count);
+      exploreLengths = Arrays.copyOf(exploreLengths, 2 * count);
+      escapeLengths = Arrays.copyOf(escapeLengths, 2 * count);
+    }
+    seeds[count] = seed;
+    offsets[count] = offset;
+    exploreLengths[count] = exploreLength;
+    escapeLengths[count] = escapeLength;
+    entryOf.put(seed, count);
+    count++;
+  }
+
+  /**
+   * Return the number of games in this archive.
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * Return true iff this archive has the caverns of the game with seed.
+   */
+  public boolean contains(long seed) {
+    return entryOf.containsKey(seed);
+  }
+
+  /**
+   * Return the seeds of the games in this archive, in the order they were added.
+   */
+  public long[] getSeeds() {
+    return Arrays.copyOf(seeds, count);
+  }
+
+  /**
+   * Return the caverns of the game with seed, read with a single positioned read.
+   * Throw an IllegalArgumentException if there is no such game in this archive,
+   * or its caverns are not validly encoded.
+   */
+  public CavernFactory.Caverns load(long seed) throws IOException {
+    Integer k = entryOf.get(seed);
+    if (k == null) {
+      throw new IllegalArgumentException("CavernArchive: no game with seed " + seed);
+    }
+    ByteBuffer buf = readFully(offsets[k], exploreLengths[k] + escapeLengths[k]);
+    buf.limit(exploreLengths[k]);
+    Cavern explore = CavernCodec.decode(buf);
+    boolean valid = !buf.hasRemaining();
+    buf.limit(buf.capacity());
+    Cavern escape = CavernCodec.decode(buf);
+    if (!valid || buf.hasRemaining()) {
+      throw new IllegalArgumentException("CavernArchive: invalid caverns for seed " + seed);
+    }
+    return new CavernFactory.Caverns(seed, explore, CompletableFuture.completedFuture(escape));
+  }
+
+  /**
+   * Add the caverns explore and escape of the game with seed to the end of this
+   * archive. Their gold is recorded as it is now, so they should not have been played.
+   * They are only in the archive once it is flushed or closed. Each flush writes the
+   * whole index, of 24 bytes a game, and forces the file to the disk twice, so add
+   * games in batches and flush after each batch, rather than after each game.
+   * Throw an IllegalStateException if this archive was not opened for appending,
+   * and an IllegalArgumentException if it already has a game with seed.
+   */
+  public void add(long seed, Cavern explore, Cavern escape) throws IOException {
+    if (!writable) {
+      throw new IllegalStateException("CavernArchive: not open for appending");
+    }
+    if (contains(seed)) {
+      throw new IllegalArgumentException("CavernArchive: seed " + seed + " is already "
+                                         + "in the archive");
+    }
+    ByteBuffer exploreCode = CavernCodec.encode(explore);
+    ByteBuffer escapeCode = CavernCodec.encode(escape);
+    int exploreLength = exploreCode.remaining();
+    int escapeLength = escapeCode.remaining();
+    writeFully(exploreCode, end);
+    writeFully(escapeCode, end + exploreLength);
+    addEntry(seed, end, exploreLength, escapeLength);
+    end += exploreLength + escapeLength;
+    dirty = true;
+  }
+
+  /**
+   * Add the caverns of a game to the end of this archive, under their seed.
+   * See add(long, Cavern, Cavern).
+   */
+  public void add(CavernFactory.Caverns caverns) throws IOException {
+    add(caverns.getSeed(), caverns.getExploreCavern(), caverns.getEscapeCavern());
+  }
+
+  /**
+   * Write the index of this archive, if games have been added since it was last
+   * written, so that the games added are in the archive: write it where the index
+   * before the one in use was, if it fits there, and at the end of the file if not,
+   * force it and the games to the disk, and then point the header to it.
+   */
+  public void flush() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    ByteBuffer index = ByteBuffer.allocate(INDEX_HEADER_SIZE + count * ENTRY_SIZE);
+    index.putInt(count).putInt(MAGIC);
+    for (int k = 0; k < count; k++) {
+      index.putLong(seeds[k]).putLong(offsets[k]);
+      index.putInt(exploreLengths[k]).putInt(escapeLengths[k]);
+    }
+    index.flip();
+    long offset;
+    long room;
+    if (spareOffset >= 0 && spareRoom >= index.capacity()) {
+      offset = spareOffset;
+      room = spareRoom;
+    } else {
+      offset = end;
+      room = 2L * index.capacity();
+      end = offset + room;
+    }
+    writeFully(index, offset);
+    channel.truncate(end);
+    channel.force(false);
+
+    ByteBuffer pointer = ByteBuffer.allocate(HEADER_SIZE - 4);
+    pointer.put(0, (byte) VERSION).putLong(4, offset);
+    writeFully(pointer, 4);
+    channel.force(false);
+    spareOffset = indexOffset;
+    spareRoom = indexRoom;
+    indexOffset = offset;
+    indexRoom = room;
+    dirty = false;
+  }
+
+  /**
+   * Write the index of this archive if it has changed, and close its file.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Return the length bytes of the file from offset, in a buffer positioned at 0.
+   * Throw an IllegalArgumentException if the file ends first.
+   */
+  private ByteBuffer readFully(long offset, int length) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, offset + buf.position()) < 0) {
+        throw new IllegalArgumentException("CavernArchive: truncated archive");
+      }
+    }
+    buf.flip();
+    return buf;
+  }
+
+  /**
+   * Write the rest of buf to the file from offset.
+   */
+  private void writeFully(ByteBuffer buf, long offset) throws IOException {
+    long position = offset;
+    while (buf.hasRemaining()) {
+      position += channel.write(buf, position);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package game;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * An instance is a bounded cache of the caverns generated for games, keyed by seed,
+ * SeedScheme and requested size, so that a game that is played again needs no
+ * generation. Each get() returns caverns of their own, that share their layout (which
+ * never changes) with the cached ones but have their own gold: a game cannot see the
+ * gold picked up in another.
+ * <p>
+ * The cache holds at most a given number of open tiles, counting both caverns of each
+ * game. When it would hold more, the games that were used least recently are evicted.
+ * Counts of hits, misses and evictions are kept so that the capacity can be chosen.
+ * Caverns whose escape cavern could not be dug are not kept: they are generated again.
+ * An instance may be used by several threads at once.
+ */
+public final class CavernCache {
+  /**
+   * The capacity of a cache made with the default constructor: room for the caverns
+   * of a few thousand games of the usual sizes.
+   */
+  public static final long DEFAULT_CAPACITY = 1L << 22;
+
+  private final long capacity;
+  /**
+   * The cached games, in order of use, from least to most recent.
+   */
+  private final LinkedHashMap<Key, CavernFactory.Caverns> games =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private long weight;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * Constructor: an empty cache of capacity DEFAULT_CAPACITY.
+   */
+  public CavernCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructor: an empty cache that holds caverns with at most maxTiles open tiles
+   * in all. Throw an IllegalArgumentException if maxTiles is not positive.
+   */
+  public CavernCache(long maxTiles) {
+    if (maxTiles <= 0) {
+      throw new IllegalArgumentException("CavernCache: capacity must be positive");
+    }
+    capacity = maxTiles;
+  }
+
+  /**
+   * Return the explore and escape caverns of the game with seed, as interpreted by
+   * scheme, of size (rows, cols), where a size of 0 means the size given by the seed:
+   * the caverns CavernFactory.generateConcurrently() would return, with no gold picked
+   * up. They are generated only if they are not in this cache, and are then added to it.
+   * Throw an IllegalArgumentException if the caverns cannot have that size.
+   */
+  public CavernFactory.Caverns get(long seed, SeedScheme scheme, int rows, int cols) {
+    Key key = new Key(seed, scheme, rows, cols);
+    CavernFactory.Caverns cached;
+    synchronized (this) {
+      cached = games.get(key);
+      if (cached != null && cached.hasFailed()) {
+        games.remove(key);
+        weight -= weightOf(cached);
+        cached = null;
+      }
+      if (cached != null) {
+        hits++;
+      } else {
+        misses++;
+      }
+    }
+    if (cached == null) {
+      // Generated outside the lock, so that other games can be had meanwhile.
+      cached = CavernFactory.generateConcurrently(seed, scheme, rows, cols);
+      synchronized (this) {
+        CavernFactory.Caverns other = games.putIfAbsent(key, cached);
+        if (other != null) {
+          cached = other;
+        } else {
+          weight += weightOf(cached);
+          evict();
+        }
+      }
+    }
+    return cached.copy();
+  }
+
+  /**
+   * Evict the games used least recently until this cache is within its capacity,
+   * keeping the most recent one however large it is.
+   */
+  private void evict() {
+    Iterator<CavernFactory.Caverns> it = games.values().iterator();
+    while (weight > capacity && games.size() > 1) {
+      weight -= weightOf(it.next());
+      it.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Return the weight of the caverns of a game: their number of open tiles, taken as
+   * twice the number in the explore cavern, as the escape cavern may still be dug.
+   */
+  private static long weightOf(CavernFactory.Caverns caverns) {
+    return 2L * caverns.getExploreCavern().numOpenTiles();
+  }
+
+  /**
+   * Return the number of games in this cache.
+   */
+  public synchronized int size() {
+    return games.size();
+  }
+
+  /**
+   * Return the number of open tiles counted against the capacity of this cache.
+   */
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  /**
+   * Return the capacity of this cache, in open tiles.
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Return the number of calls of get() whose caverns were in this cache.
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * Return the number of calls of get() whose caverns had to be generated.
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * Return the number of games evicted from this cache to keep it within its capacity.
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /**
+   * Remove every game from this cache. The counts are kept.
+   */
+  public synchronized void clear() {
+    games.clear();
+    weight = 0;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "CavernCache[" + games.size() + " games, " + weight + "/" + capacity + " tiles, "
+        + hits + " hits, " + misses + " misses, " + evictions + " evictions]";
+  }
+
+  /**
+   * An instance identifies the caverns of a game. Their generator is fixed by their
+   * size (see CavernFactory.digsInTiles()), so the key need not hold it.
+   */
+  private static final class Key {
+    private final long seed;
+    private final SeedScheme scheme;
+    private final int rows;
+    private final int cols;
+
+    Key(long s, SeedScheme sch, int rws, int cls) {
+      seed = s;
+      scheme = sch;
+      rows = rws;
+      cols = cls;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return seed == k.seed && scheme == k.scheme && rows == k.rows && cols == k.cols;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(seed, scheme, rows, cols);
+    }
+  }
+}
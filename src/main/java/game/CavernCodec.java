@@ -0,0 +1,574 @@
+package game;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Encodes caverns in a compact binary format, and decodes them again.
+ * <p>
+ * Version 1 of the format is, with all fixed-width numbers big-endian:
+ * <pre>
+ *   int     MAGIC ("CAVN")
+ *   byte    version (1)
+ *   int     rows, int cols
+ *   varint  id of the entrance, varint id of the target
+ *   byte    ordinal of the Tile.Type of the target (ENTRANCE if it is the entrance)
+ *   long[]  bitmap of the open cells, in row-major order (see OpenCells)
+ *   varint  gold remaining on each open tile, in order of id
+ *   varint  number of pairs of adjacent open cells
+ *   byte[]  their edge weights, two to a byte (low nibble first), 0 for no edge
+ * </pre>
+ * Version 3 is version 1 followed by sections of data that can be derived from the
+ * cavern, but are costly to compute:
+ * <pre>
+ *   varint  number of sections, then for each: byte tag, varint length, the data
+ * </pre>
+ * The only section is the cavern's precomputed distances (see DistanceTable), which
+ * are written iff the cavern has them. They are only parsed, and checked against the
+ * cavern, the first time they are needed. Sections with unknown tags are skipped.
+ * Every other open tile is floor. The pairs are taken in the order in which caverns
+ * create their edges: in row-major order of the northern or western cell of the pair,
+ * with the southern pair before the eastern one. Varints are unsigned LEB128.
+ * As edge weights are at most MAX_EDGE_WEIGHT (15), a cavern of a few hundred tiles
+ * takes a few hundred bytes, rather than the tens of kilobytes of Cavern.serialize().
+ * <p>
+ * Version 1 has to be decoded in full before it can be used. Version 2 (see
+ * MappedStore) is several times larger, but is laid out so that a cavern can be used
+ * straight from the file: map() opens one in constant time, and its tiles and edges
+ * are only read, from the page cache, when they are asked for.
+ */
+public final class CavernCodec {
+  /**
+   * The first four bytes of every encoded cavern: "CAVN" in ASCII.
+   */
+  public static final int MAGIC = 0x4341564E;
+  /**
+   * The version of the format written by encode() and write().
+   */
+  public static final int VERSION = 1;
+  /**
+   * The version of the format written by encode() and write() for a cavern
+   * with precomputed distances.
+   */
+  public static final int SECTIONED_VERSION = 3;
+  /**
+   * The version of the format written by writeMappable() and opened by map().
+   */
+  public static final int MAPPABLE_VERSION = MappedStore.VERSION;
+  private static final Tile.Type[] TILE_TYPES = Tile.Type.values();
+
+  /**
+   * Constructor: no instances.
+   */
+  private CavernCodec() {
+  }
+
+  /**
+   * Return a buffer holding the encoding of cavern, ready to be read: in version 3
+   * if it has precomputed distances, and in version 1 otherwise.
+   * Throw an IllegalArgumentException if cavern has an edge whose weight
+   * does not fit in four bits.
+   */
+  public static ByteBuffer encode(Cavern cavern) {
+    final CavernStore cells = cavern.store();
+    final int n = cells.count();
+    final int rows = cavern.getRowCount();
+    final int cols = cavern.getColumnCount();
+    final int words = OpenCells.wordCount(rows, cols);
+
+    final int entranceId = cavern.indexOf(cavern.getEntrance());
+    final int targetId = cavern.indexOf(cavern.getTarget());
+    final int pairs = countPairs(rows, cols, cells::idAt);
+    int size = 4 + 1 + 4 + 4 + varintSize(entranceId) + varintSize(targetId) + 1 
+        + 8 * words + varintSize(pairs) + (pairs + 1) / 2;
+    for (int i = 0; i < n; i++) {
+      size += varintSize(cavern.getGold(i));
+    }
+    final DistanceTable table = cavern.distanceTable();
+    final int tableSize = (table == null ? 0 : table.encodedSize());
+    if (table != null) {
+      size += varintSize(1) + 1 + varintSize(tableSize) + tableSize;
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.putInt(MAGIC);
+    buf.put((byte) (table == null ? VERSION : SECTIONED_VERSION));
+    buf.putInt(rows);
+    buf.putInt(cols);
+    putVarint(buf, entranceId);
+    putVarint(buf, targetId);
+    buf.put((byte) cavern.getTarget().getTile().getType().ordinal());
+    for (int w = 0; w < words; w++) {
+      buf.putLong(cells.word(w));
+    }
+    for (int i = 0; i < n; i++) {
+      putVarint(buf, cavern.getGold(i));
+    }
+
+    putVarint(buf, pairs);
+    final int weightStart = buf.position();
+    int k = 0;
+    for (int i = 0; i < rows - 1; i++) {
+      for (int j = 0; j < cols - 1; j++) {
+        int id = cells.idAt(i, j);
+        if (id < 0) {
+          continue;
+        }
+        int south = cells.idAt(i + 1, j);
+        if (south >= 0) {
+          putNibble(buf, weightStart, k++, cavern.weightBetween(id, south));
+        }
+        int east = cells.idAt(i, j + 1);
+        if (east >= 0) {
+          putNibble(buf, weightStart, k++, cavern.weightBetween(id, east));
+        }
+      }
+    }
+    buf.position(weightStart + (pairs + 1) / 2);
+
+    if (table != null) {
+      putVarint(buf, 1);
+      buf.put((byte) DistanceTable.SECTION_TAG);
+      putVarint(buf, tableSize);
+      table.encode(buf);
+    }
+    buf.flip();
+    return buf;
+  }
+
+  /**
+   * Return the cavern encoded in buf, from its position onwards, and advance the
+   * position of buf past the encoding.
+   * A cavern in version 2 of the format is read from buf as it is used, so buf
+   * must not be changed afterwards.
+   * Throw an IllegalArgumentException if buf does not hold a valid encoding.
+   */
+  public static Cavern decode(ByteBuffer buf) {
+    if (buf.remaining() > 4 && buf.get(buf.position() + 4) == MAPPABLE_VERSION) {
+      MappedStore store = new MappedStore(chunks(buf.slice()));
+      buf.position(buf.position() + (int) MappedStore.size(store.getRowCount(), 
+          store.getColumnCount(), store.count()));
+      return new Cavern(store);
+    }
+    try {
+      if (buf.getInt() != MAGIC) {
+        throw new IllegalArgumentException("decode: not an encoded cavern");
+      }
+      int version = buf.get();
+      if (version != VERSION && version != SECTIONED_VERSION) {
+        throw new IllegalArgumentException("decode: unsupported version " + version);
+      }
+      final int rows = buf.getInt();
+      final int cols = buf.getInt();
+      if (rows < 3 || cols < 3 || (long) rows * cols > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("decode: invalid size " + rows + "x" + cols);
+      }
+      final int entranceId = getVarint(buf);
+      final int targetId = getVarint(buf);
+      final int targetType = buf.get();
+      if (targetType < 0 || targetType >= TILE_TYPES.length) {
+        throw new IllegalArgumentException("decode: invalid target type " + targetType);
+      }
+
+      long[] words = new long[OpenCells.wordCount(rows, cols)];
+      for (int w = 0; w < words.length; w++) {
+        words[w] = buf.getLong();
+      }
+      OpenCells cells = new OpenCells(rows, cols, words);
+      int[] gold = new int[cells.count()];
+      for (int i = 0; i < gold.length; i++) {
+        gold[i] = getVarint(buf);
+      }
+
+      final int pairs = getVarint(buf);
+      if (pairs != countPairs(rows, cols, cells::idAt) || buf.remaining() < (pairs + 1) / 2) {
+        throw new IllegalArgumentException("decode: wrong number of edge weights");
+      }
+      final int weightStart = buf.position();
+      buf.position(weightStart + (pairs + 1) / 2);
+      int[] next = new int[1];
+      Cavern cavern = Cavern.fromTiles(cells, gold, entranceId, targetId, 
+                                       TILE_TYPES[targetType], () -> {
+          int k = next[0]++;
+          return (buf.get(weightStart + k / 2) >> (4 * (k % 2))) & 0xF;
+        });
+
+      if (version == SECTIONED_VERSION) {
+        int sections = getVarint(buf);
+        for (int s = 0; s < sections; s++) {
+          int tag = buf.get();
+          int length = getVarint(buf);
+          if (length > buf.remaining()) {
+            throw new IllegalArgumentException("decode: truncated section");
+          }
+          if (tag == DistanceTable.SECTION_TAG) {
+            // Copied, so that buf may be reused, but only parsed when it is needed.
+            byte[] data = new byte[length];
+            buf.get(data);
+            cavern.setDistanceSource(() -> DistanceTable.decode(ByteBuffer.wrap(data)));
+          } else {
+            buf.position(buf.position() + length);
+          }
+        }
+      }
+      return cavern;
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("decode: truncated cavern", e);
+    }
+  }
+
+  /**
+   * Write the encoding of cavern to channel.
+   */
+  public static void write(Cavern cavern, WritableByteChannel channel) throws IOException {
+    ByteBuffer buf = encode(cavern);
+    while (buf.hasRemaining()) {
+      channel.write(buf);
+    }
+  }
+
+  /**
+   * Write the encoding of cavern to the file at path, replacing its contents.
+   */
+  public static void write(Cavern cavern, Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      write(cavern, channel);
+    }
+  }
+
+  /**
+   * Write cavern to channel in version 2 of the format, which map() can open.
+   * The cavern is written as it is read, through a small buffer, so it can be larger
+   * than the heap would hold. Throw an IllegalArgumentException if cavern has more
+   * than MappedStore.MAX_COUNT tiles, or an edge whose weight does not fit in four bits.
+   */
+  public static void writeMappable(Cavern cavern, WritableByteChannel channel) 
+      throws IOException {
+    final CavernStore store = cavern.store();
+    final int rows = store.getRowCount();
+    final int cols = store.getColumnCount();
+    final int n = store.count();
+    final int words = OpenCells.wordCount(rows, cols);
+    if (n > MappedStore.MAX_COUNT) {
+      throw new IllegalArgumentException("writeMappable: too many tiles: " + n);
+    }
+
+    ChannelOutput out = new ChannelOutput(channel);
+    out.putInt(MAGIC);
+    out.put((byte) MAPPABLE_VERSION);
+    out.pad();
+    out.putInt(rows);
+    out.putInt(cols);
+    out.putInt(n);
+    out.putInt(store.getEntranceId());
+    out.putInt(store.getTargetId());
+    out.put((byte) store.getType(store.getTargetId()).ordinal());
+    out.pad();
+    int rank = 0;
+    for (int w = 0; w < words; w++) {
+      out.putLong(store.word(w));
+    }
+    for (int w = 0; w < words; w++) {
+      out.putInt(rank);
+      rank += Long.bitCount(store.word(w));
+    }
+    out.pad();
+    for (int i = 0; i < n; i++) {
+      out.putLong(store.cellWithId(i));
+    }
+    for (int i = 0; i < n; i++) {
+      out.putInt(cavern.getGold(i));
+    }
+    out.pad();
+    for (int i = 0; i < n; i++) {
+      long cell = store.cellWithId(i);
+      int r = (int) (cell / cols);
+      int c = (int) (cell % cols);
+      int south = (r + 1 < rows ? store.idAt(r + 1, c) : -1);
+      int east = (c + 1 < cols ? store.idAt(r, c + 1) : -1);
+      int southWeight = (south < 0 ? 0 : cavern.weightBetween(i, south));
+      int eastWeight = (east < 0 ? 0 : cavern.weightBetween(i, east));
+      if (southWeight > 0xF || eastWeight > 0xF) {
+        throw new IllegalArgumentException("writeMappable: edge weight does not fit in"
+                                           + " four bits");
+      }
+      out.put((byte) (southWeight | eastWeight << 4));
+    }
+    out.pad();
+    out.flush();
+  }
+
+  /**
+   * Write cavern to the file at path in version 2 of the format, replacing its
+   * contents. See writeMappable(Cavern, WritableByteChannel).
+   */
+  public static void writeMappable(Cavern cavern, Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeMappable(cavern, channel);
+    }
+  }
+
+  /**
+   * Return the cavern in the file at path, which must be in version 2 of the format,
+   * mapped into memory. This takes time independent of the size of the cavern:
+   * its tiles, edges and gold are read from the mapping as they are used, and nodes
+   * are only created when they are asked for. The file must not change while the
+   * cavern is in use. Throw an IllegalArgumentException if it is not a valid encoding.
+   */
+  public static Cavern map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer[] chunks = new ByteBuffer[(int) ((size + MappedStore.CHUNK_SIZE - 1) 
+                                                  / MappedStore.CHUNK_SIZE)];
+      for (int j = 0; j < chunks.length; j++) {
+        long start = j * MappedStore.CHUNK_SIZE;
+        chunks[j] = channel.map(FileChannel.MapMode.READ_ONLY, start, 
+                                Math.min(MappedStore.CHUNK_SIZE, size - start));
+      }
+      // The mappings stay valid once the channel is closed.
+      return new Cavern(new MappedStore(chunks));
+    }
+  }
+
+  /**
+   * Return the cavern encoded in the rest of channel.
+   * Throw an IllegalArgumentException if it is not a valid encoding.
+   */
+  public static Cavern read(ReadableByteChannel channel) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(4096);
+    while (channel.read(buf) >= 0) {
+      if (!buf.hasRemaining()) {
+        ByteBuffer bigger = ByteBuffer.allocate(2 * buf.capacity());
+        buf.flip();
+        bigger.put(buf);
+        buf = bigger;
+      }
+    }
+    buf.flip();
+    return decode(buf);
+  }
+
+  /**
+   * Return the cavern encoded in the file at path.
+   * Throw an IllegalArgumentException if it is not a valid encoding.
+   */
+  public static Cavern read(Path path) throws IOException {
+    return decode(readFile(path));
+  }
+
+  /**
+   * Return the cavern in the file at path, which may be encoded in either version
+   * of this format or written by Cavern.serialize(); the format is told by the first
+   * five bytes. A cavern in version 2 is mapped (see map()).
+   */
+  public static Cavern load(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(5);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // keep reading until the header is full or the file ends
+      }
+      if (header.position() < 5 || header.getInt(0) != MAGIC) {
+        // Text is parsed straight from the page cache, as it is read only once.
+        if (channel.size() > Integer.MAX_VALUE) {
+          try (Reader in = Files.newBufferedReader(path, StandardCharsets.US_ASCII)) {
+            return CavernTextReader.read(in);
+          }
+        }
+        return CavernTextReader.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, 
+                                                 channel.size()));
+      }
+      if (header.get(4) == MAPPABLE_VERSION) {
+        return map(path);
+      }
+    }
+    return read(path);
+  }
+
+  /**
+   * Return buf, from its position to its limit, split into buffers of
+   * MappedStore.CHUNK_SIZE bytes (but the last) that each start at position 0.
+   */
+  private static ByteBuffer[] chunks(ByteBuffer buf) {
+    ByteBuffer[] chunks = new ByteBuffer[(int) ((buf.remaining() + MappedStore.CHUNK_SIZE - 1) 
+                                                / MappedStore.CHUNK_SIZE)];
+    for (int j = 0; j < chunks.length; j++) {
+      ByteBuffer chunk = buf.duplicate();
+      int start = buf.position() + (int) (j * MappedStore.CHUNK_SIZE);
+      chunk.position(start);
+      chunk.limit((int) Math.min(buf.limit(), start + MappedStore.CHUNK_SIZE));
+      chunks[j] = chunk.slice();
+    }
+    return chunks;
+  }
+
+  /**
+   * Return a buffer holding the contents of the file at path, ready to be read.
+   */
+  private static ByteBuffer readFile(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File too large for a cavern: " + path);
+      }
+      ByteBuffer buf = ByteBuffer.allocate((int) size);
+      while (buf.hasRemaining() && channel.read(buf) >= 0) {
+        // keep reading until the buffer is full or the file ends
+      }
+      buf.flip();
+      return buf;
+    }
+  }
+
+  /**
+   * Return the number of pairs of adjacent open cells in a grid of size (rows, cols)
+   * whose edges are encoded, that is, the number of weights that Cavern.fromTiles()
+   * asks for. idAt gives the id of the cell at (row, col), or -1 if it is a wall.
+   */
+  private static int countPairs(int rows, int cols, IntBinaryOperator idAt) {
+    int pairs = 0;
+    for (int i = 0; i < rows - 1; i++) {
+      for (int j = 0; j < cols - 1; j++) {
+        if (idAt.applyAsInt(i, j) >= 0) {
+          if (idAt.applyAsInt(i + 1, j) >= 0) {
+            pairs++;
+          }
+          if (idAt.applyAsInt(i, j + 1) >= 0) {
+            pairs++;
+          }
+        }
+      }
+    }
+    return pairs;
+  }
+
+  /**
+   * Put weight w into the kth nibble of the weights that start at index start of buf.
+   * Throw an IllegalArgumentException if w does not fit in four bits.
+   * Precondition: the nibbles before the kth have been put, and no others.
+   */
+  private static void putNibble(ByteBuffer buf, int start, int k, int w) {
+    if (w < 0 || w > 0xF) {
+      throw new IllegalArgumentException("encode: edge weight " + w 
+                                         + " does not fit in four bits");
+    }
+    int index = start + k / 2;
+    buf.put(index, (byte) (k % 2 == 0 ? w : buf.get(index) | w << 4));
+  }
+
+  /**
+   * An instance writes numbers to a channel through a small buffer,
+   * keeping count of the bytes written so that it can pad them to a multiple of 8.
+   */
+  private static class ChannelOutput {
+    private final WritableByteChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+    private long written;
+
+    /**
+     * Constructor: an instance that writes to ch.
+     */
+    ChannelOutput(WritableByteChannel ch) {
+      channel = ch;
+    }
+
+    /**
+     * Make room for at least 8 more bytes in the buffer.
+     */
+    private void reserve() throws IOException {
+      if (buf.remaining() < 8) {
+        flush();
+      }
+    }
+
+    void putLong(long v) throws IOException {
+      reserve();
+      buf.putLong(v);
+      written += 8;
+    }
+
+    void putInt(int v) throws IOException {
+      reserve();
+      buf.putInt(v);
+      written += 4;
+    }
+
+    void put(byte v) throws IOException {
+      reserve();
+      buf.put(v);
+      written++;
+    }
+
+    /**
+     * Write zeros until a multiple of 8 bytes has been written.
+     */
+    void pad() throws IOException {
+      while (written % 8 != 0) {
+        put((byte) 0);
+      }
+    }
+
+    /**
+     * Write out everything in the buffer.
+     */
+    void flush() throws IOException {
+      buf.flip();
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+      buf.clear();
+    }
+  }
+
+  /**
+   * Return the number of bytes in the varint encoding of v.
+   */
+  static int varintSize(int v) {
+    int size = 1;
+    while ((v >>>= 7) != 0) {
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Put the varint encoding of v into buf.
+   */
+  static void putVarint(ByteBuffer buf, int v) {
+    while ((v & ~0x7F) != 0) {
+      buf.put((byte) (v & 0x7F | 0x80));
+      v >>>= 7;
+    }
+    buf.put((byte) v);
+  }
+
+  /**
+   * Return the varint at the position of buf, and advance past it.
+   * Throw an IllegalArgumentException if it is negative or too long for an int.
+   */
+  static int getVarint(ByteBuffer buf) {
+    int v = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = buf.get();
+      v |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (v < 0) {
+          throw new IllegalArgumentException("decode: negative varint");
+        }
+        return v;
+      }
+    }
+    throw new IllegalArgumentException("decode: varint too long");
+  }
+}
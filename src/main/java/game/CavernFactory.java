@@ -0,0 +1,313 @@
+package game;
+
+import static game.Constants.MAX_CELLS;
+import static game.Constants.MAX_COLS;
+import static game.Constants.MAX_ROWS;
+import static game.Constants.MIN_COLS;
+import static game.Constants.MIN_ROWS;
+
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * An instance generates the caverns of many games at once, spreading the work
+ * over the threads of a ForkJoinPool.
+ * The caverns generated for a seed are exactly those of a game run with that seed
+ * (and the same SeedScheme).
+ */
+public class CavernFactory {
+  private static final CavernGenerator BREADTH_FIRST = new BreadthFirstGenerator();
+  private static final CavernGenerator TILED = new TiledCavernGenerator();
+
+  private final ForkJoinPool pool;
+  private final SeedScheme scheme;
+
+  /**
+   * Constructor: an instance that generates caverns on the common ForkJoinPool,
+   * using the original seed scheme.
+   */
+  public CavernFactory() {
+    this(ForkJoinPool.commonPool(), SeedScheme.SEQUENTIAL);
+  }
+
+  /**
+   * Constructor: an instance that generates caverns on the threads of p,
+   * using the original seed scheme.
+   */
+  public CavernFactory(ForkJoinPool p) {
+    this(p, SeedScheme.SEQUENTIAL);
+  }
+
+  /**
+   * Constructor: an instance that generates caverns on the threads of p,
+   * using seed scheme s.
+   */
+  public CavernFactory(ForkJoinPool p, SeedScheme s) {
+    pool = p;
+    scheme = s;
+  }
+
+  /**
+   * Return the explore and escape caverns of the game with seed seed,
+   * using the original seed scheme.
+   */
+  public static Caverns generate(long seed) {
+    return generate(seed, SeedScheme.SEQUENTIAL);
+  }
+
+  /**
+   * Return the explore and escape caverns of the game with seed seed, using scheme.
+   * Both caverns are dug by the calling thread.
+   */
+  public static Caverns generate(long seed, SeedScheme scheme) {
+    return generate(seed, scheme, 0, 0);
+  }
+
+  /**
+   * Return the explore and escape caverns of the game with seed seed, using scheme,
+   * with rows rows and cols columns. A size of 0 means the size given by the seed,
+   * which is always drawn, so that the rest of the caverns do not depend on whether
+   * it is overridden. Both caverns are dug by the calling thread.
+   * This is the only place where caverns are made from a seed.
+   * Throw an IllegalArgumentException if the size is not valid (see checkSize()).
+   */
+  public static Caverns generate(long seed, SeedScheme scheme, int rows, int cols) {
+    checkSize(rows, cols);
+    if (scheme == SeedScheme.SPLIT) {
+      SplitSeed split = new SplitSeed(seed, rows, cols);
+      Cavern exploreCavern = split.digExploreCavern();
+      return new Caverns(seed, exploreCavern,
+          CompletableFuture.completedFuture(split.digEscapeCavern(exploreCavern)));
+    }
+
+    Random rand = new Random(seed);
+    final int seedRows = rand.nextInt(MAX_ROWS - MIN_ROWS + 1) + MIN_ROWS;
+    final int seedCols = rand.nextInt(MAX_COLS - MIN_COLS + 1) + MIN_COLS;
+    final int r = (rows != 0 ? rows : seedRows);
+    final int c = (cols != 0 ? cols : seedCols);
+    CavernGenerator generator = generatorFor(r, c);
+    Cavern exploreCavern = Cavern.digExploreCavern(r, c, rand, generator);
+    Tile orbTile = exploreCavern.getTarget().getTile();
+    Cavern escapeCavern = Cavern.digEscapeCavern(r, c, orbTile.getRow(), orbTile.getColumn(),
+                                                 rand, generator);
+    return new Caverns(seed, exploreCavern, CompletableFuture.completedFuture(escapeCavern));
+  }
+
+  /**
+   * Return the explore and escape caverns of the game with seed seed, using scheme,
+   * as soon as the explore cavern is ready. With the SPLIT scheme the escape cavern
+   * is dug on another thread at the same time as the explore cavern, and may still be
+   * being dug when this method returns; the caverns are the same as those of generate().
+   * That thread then also computes the distances from every tile of the escape cavern
+   * to its exit (see Cavern.distancesToTarget()), which the game needs to time the
+   * escape, so that they are ready, or under way, by the time the explore phase ends.
+   * Do not call this from a task of a ForkJoinPool that is busy with other games.
+   */
+  public static Caverns generateConcurrently(long seed, SeedScheme scheme) {
+    return generateConcurrently(seed, scheme, 0, 0);
+  }
+
+  /**
+   * As generateConcurrently(seed, scheme), but with rows rows and cols columns.
+   * See generate(long, SeedScheme, int, int).
+   */
+  public static Caverns generateConcurrently(long seed, SeedScheme scheme, 
+                                             int rows, int cols) {
+    if (scheme != SeedScheme.SPLIT) {
+      return generate(seed, scheme, rows, cols);
+    }
+
+    checkSize(rows, cols);
+    SplitSeed split = new SplitSeed(seed, rows, cols);
+    CompletableFuture<Cavern> exploreCavern = new CompletableFuture<>();
+    CompletableFuture<Cavern> escapeCavern = CompletableFuture.supplyAsync(() -> {
+      Cavern escape = split.digEscapeCavern(exploreCavern);
+      escape.distancesToTarget();
+      return escape;
+    });
+    try {
+      exploreCavern.complete(split.digExploreCavern());
+    } catch (RuntimeException | Error e) {
+      exploreCavern.completeExceptionally(e);
+      throw e;
+    }
+    return new Caverns(seed, exploreCavern.join(), escapeCavern);
+  }
+
+  /**
+   * Check a size override of (rows, cols), where 0 means no override.
+   * Throw an IllegalArgumentException unless rows is 0 or at least MIN_ROWS,
+   * cols is 0 or at least MIN_COLS, and the grid has at most MAX_CELLS cells.
+   */
+  static void checkSize(int rows, int cols) {
+    if (rows != 0 && rows < MIN_ROWS || cols != 0 && cols < MIN_COLS) {
+      throw new IllegalArgumentException("Caverns must have at least " + MIN_ROWS 
+                                         + " rows and " + MIN_COLS + " columns");
+    }
+    if ((long) (rows != 0 ? rows : MAX_ROWS) * (cols != 0 ? cols : MAX_COLS) > MAX_CELLS) {
+      throw new IllegalArgumentException("Caverns can have at most " + MAX_CELLS + " cells");
+    }
+  }
+
+  /**
+   * Return true iff caverns of size (rows, cols) are dug in tiles, by a
+   * TiledCavernGenerator, which is the case iff rows > MAX_ROWS or cols > MAX_COLS.
+   * Caverns of the sizes drawn from seeds are dug breadth first, as they always have
+   * been. That generator peters out long before it fills a large grid, so larger
+   * caverns are dug in tiles instead, which takes time linear in their size.
+   * The generator is thus fixed by the size, which is part of the seed of a game
+   * (see GameOptions.size()) and of the key of a CavernCache.
+   */
+  public static boolean digsInTiles(int rows, int cols) {
+    return rows > MAX_ROWS || cols > MAX_COLS;
+  }
+
+  /**
+   * Return the generator that digs caverns of size (rows, cols): see digsInTiles().
+   */
+  static CavernGenerator generatorFor(int rows, int cols) {
+    return digsInTiles(rows, cols) ? TILED : BREADTH_FIRST;
+  }
+
+  /**
+   * Return the caverns for every seed in firstSeed..lastSeed-1, in order of seed.
+   * They are generated in parallel on this factory's pool.
+   */
+  public List<Caverns> generate(long firstSeed, long lastSeed) {
+    return pool.submit(() -> 
+      stream(firstSeed, lastSeed, scheme).collect(Collectors.toList())).join();
+  }
+
+  /**
+   * Return a parallel stream of the caverns for every seed in firstSeed..lastSeed-1,
+   * in order of seed, using the original seed scheme.
+   * The caverns are generated lazily, as the stream is consumed, on the pool of the
+   * thread that runs the terminal operation (see ForkJoinPool).
+   */
+  public static Stream<Caverns> stream(long firstSeed, long lastSeed) {
+    return stream(firstSeed, lastSeed, SeedScheme.SEQUENTIAL);
+  }
+
+  /**
+   * Return a parallel stream of the caverns for every seed in firstSeed..lastSeed-1,
+   * in order of seed, using scheme. See stream(long, long).
+   */
+  public static Stream<Caverns> stream(long firstSeed, long lastSeed, SeedScheme scheme) {
+    return LongStream.range(firstSeed, lastSeed).parallel()
+        .mapToObj((seed) -> generate(seed, scheme));
+  }
+
+  /**
+   * An instance holds the size of the caverns of a game, and the seeds of the
+   * generators for each of its caverns, as split from the seed of the game
+   * by the SPLIT scheme.
+   */
+  private static class SplitSeed {
+    private final int rows;
+    private final int cols;
+    private final long exploreSeed;
+    private final long escapeSeed;
+    private final CavernGenerator generator;
+
+    /**
+     * Constructor: the split of seed, with the size overridden by (rws, cls)
+     * where they are not 0.
+     */
+    SplitSeed(long seed, int rws, int cls) {
+      SplittableRandom root = new SplittableRandom(seed);
+      int seedRows = root.nextInt(MIN_ROWS, MAX_ROWS + 1);
+      int seedCols = root.nextInt(MIN_COLS, MAX_COLS + 1);
+      rows = (rws != 0 ? rws : seedRows);
+      cols = (cls != 0 ? cls : seedCols);
+      exploreSeed = root.nextLong();
+      escapeSeed = root.nextLong();
+      generator = generatorFor(rows, cols);
+    }
+
+    /**
+     * Return the explore cavern.
+     */
+    Cavern digExploreCavern() {
+      return Cavern.digExploreCavern(rows, cols, new Random(exploreSeed), generator);
+    }
+
+    /**
+     * Return the escape cavern for the explore cavern exploreCavern.
+     */
+    Cavern digEscapeCavern(Cavern exploreCavern) {
+      return digEscapeCavern(CompletableFuture.completedFuture(exploreCavern));
+    }
+
+    /**
+     * Return the escape cavern for the explore cavern that exploreCavern will hold,
+     * waiting for it only once everything but the position of the orb is known.
+     */
+    Cavern digEscapeCavern(CompletableFuture<Cavern> exploreCavern) {
+      return Cavern.digEscapeCavern(rows, cols, () -> {
+        Tile orbTile = exploreCavern.join().getTarget().getTile();
+        return orbTile.getRow() * cols + orbTile.getColumn();
+      }, new Random(escapeSeed), generator);
+    }
+  }
+
+  /**
+   * An instance holds the two caverns of the game with a given seed.
+   * The escape cavern may still be being dug.
+   */
+  public static final class Caverns {
+    private final long seed;
+    private final Cavern exploreCavern;
+    private final CompletableFuture<Cavern> escapeCavern;
+
+    /**
+     * Constructor: the caverns explore and (eventually) escape of the game with seed s.
+     */
+    Caverns(long s, Cavern explore, CompletableFuture<Cavern> escape) {
+      seed = s;
+      exploreCavern = explore;
+      escapeCavern = escape;
+    }
+
+    /**
+     * Return the seed these caverns were generated from.
+     */
+    public long getSeed() {
+      return seed;
+    }
+
+    /**
+     * Return the cavern of the explore phase.
+     */
+    public Cavern getExploreCavern() {
+      return exploreCavern;
+    }
+
+    /**
+     * Return the cavern of the escape phase, waiting for it to be dug if necessary.
+     */
+    public Cavern getEscapeCavern() {
+      return escapeCavern.join();
+    }
+
+    /**
+     * Return true iff the escape cavern could not be dug: getEscapeCavern() throws.
+     */
+    boolean hasFailed() {
+      return escapeCavern.isCompletedExceptionally();
+    }
+
+    /**
+     * Return copies of these caverns, with no gold picked up (see Cavern.copy()).
+     * The escape cavern is copied once it has been dug.
+     */
+    Caverns copy() {
+      return new Caverns(seed, exploreCavern.copy(), escapeCavern.thenApply(Cavern::copy));
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package game;
+
+import java.util.Random;
+
+/**
+ * An instance digs the shape of new caverns: it decides which cells of the grid are
+ * open. The cavern does the rest: it places the entrance before the generator is
+ * called, puts gold on each tile as it is opened, and places the orb afterwards.
+ * <p>
+ * A generator must leave every open cell connected to the entrance, through open
+ * cells that are next to each other on the grid, so that the orb is always reachable;
+ * Cavern checks this and throws an IllegalStateException if it does not hold.
+ * The grid border can only be opened at the entrance, which Site enforces.
+ * Generators must be deterministic: the same Random must give the same shape.
+ */
+public interface CavernGenerator {
+  /**
+   * Open the cells of a new random cavern in site, using rand as the source of
+   * randomness. The entrance of the cavern is already open.
+   */
+  void dig(Site site, Random rand);
+
+  /**
+   * An instance is a grid on which a cavern is being dug.
+   */
+  interface Site {
+    /**
+     * Return the number of rows in the grid.
+     */
+    int getRowCount();
+
+    /**
+     * Return the number of columns in the grid.
+     */
+    int getColumnCount();
+
+    /**
+     * Return the row of the entrance, which is on the border of the grid.
+     */
+    int getEntranceRow();
+
+    /**
+     * Return the column of the entrance, which is on the border of the grid.
+     */
+    int getEntranceColumn();
+
+    /**
+     * Return true iff (row, col) is on the grid and not on its border,
+     * that is, iff it may be opened.
+     */
+    boolean isInterior(int row, int col);
+
+    /**
+     * Return true iff (row, col) has been opened.
+     * Precondition: (row, col) is on the grid.
+     */
+    boolean isOpen(int row, int col);
+
+    /**
+     * Open (row, col) if it is not already open.
+     * Throw an IllegalArgumentException if (row, col) is not interior.
+     */
+    void open(int row, int col);
+  }
+}
@@ -0,0 +1,195 @@
+package game;
+
+import java.util.Arrays;
+
+/**
+ * An instance is a snapshot of the shape and memory footprint of a cavern, as
+ * returned by Cavern.getStats().
+ * <p>
+ * Sizes are estimates of the bytes retained on the heap, for a 64-bit JVM with
+ * compressed references (12-byte object headers, 4-byte references, 8-byte
+ * alignment), split by component:
+ * <ul>
+ * <li>tiles: the open cells, original gold and types of the layout, and the record
+ * of the gold picked up;</li>
+ * <li>edges: the edges of the layout, and the Edge objects made for the nodes;</li>
+ * <li>nodes: the Node and Tile objects made so far (they are made as they are asked
+ * for), with the table or map that holds them;</li>
+ * <li>caches: precomputed distances, the distances to the target once they have been
+ * needed, and the working arrays kept for searches.</li>
+ * </ul>
+ * A layout that is shared by several caverns (see CavernCache) is counted in full by
+ * each of them. A cavern mapped from a file keeps its layout in the page cache instead,
+ * which is reported as mapped bytes rather than as heap.
+ */
+public final class CavernStats {
+  private static final int OBJECT_HEADER = 12;
+  private static final int ARRAY_HEADER = 16;
+  static final int REFERENCE = 4;
+
+  private final int rows;
+  private final int cols;
+  private final int openTiles;
+  private final int[] degreeCounts;
+  private final int goldTiles;
+  private final int goldTilesRemaining;
+  private final int nodesMade;
+  private final long tileBytes;
+  private final long edgeBytes;
+  private final long nodeBytes;
+  private final long cacheBytes;
+  private final long mappedBytes;
+
+  /**
+   * Constructor: the statistics of a cavern of size (rws, cls) with the given
+   * counts and sizes in bytes. degrees[d] is the number of open tiles with d edges.
+   */
+  CavernStats(int rws, int cls, int tiles, int[] degrees, int gold, int goldRemaining,
+              int made, long tileSize, long edgeSize, long nodeSize, long cacheSize,
+              long mappedSize) {
+    rows = rws;
+    cols = cls;
+    openTiles = tiles;
+    degreeCounts = degrees;
+    goldTiles = gold;
+    goldTilesRemaining = goldRemaining;
+    nodesMade = made;
+    tileBytes = tileSize;
+    edgeBytes = edgeSize;
+    nodeBytes = nodeSize;
+    cacheBytes = cacheSize;
+    mappedBytes = mappedSize;
+  }
+
+  /**
+   * Return the size on the heap of an object with fieldBytes bytes of fields.
+   */
+  static long objectBytes(int fieldBytes) {
+    return align(OBJECT_HEADER + fieldBytes);
+  }
+
+  /**
+   * Return the size on the heap of an array of length elements of elementBytes each.
+   */
+  static long arrayBytes(long length, int elementBytes) {
+    return align(ARRAY_HEADER + length * elementBytes);
+  }
+
+  private static long align(long bytes) {
+    return (bytes + 7) & ~7L;
+  }
+
+  /**
+   * Return the number of rows in the grid.
+   */
+  public int getRowCount() {
+    return rows;
+  }
+
+  /**
+   * Return the number of columns in the grid.
+   */
+  public int getColumnCount() {
+    return cols;
+  }
+
+  /**
+   * Return the number of open tiles.
+   */
+  public int getOpenTileCount() {
+    return openTiles;
+  }
+
+  /**
+   * Return the number of edges, each counted once (not once for each direction).
+   */
+  public long getEdgeCount() {
+    long ends = 0;
+    for (int d = 0; d < degreeCounts.length; d++) {
+      ends += (long) d * degreeCounts[d];
+    }
+    return ends / 2;
+  }
+
+  /**
+   * Return the number of open tiles with d edges, for 0 <= d <= 4 (0 otherwise).
+   */
+  public int getDegreeCount(int d) {
+    return (d >= 0 && d < degreeCounts.length ? degreeCounts[d] : 0);
+  }
+
+  /**
+   * Return the number of open tiles that had gold on them when the cavern was made.
+   */
+  public int getGoldTileCount() {
+    return goldTiles;
+  }
+
+  /**
+   * Return the number of open tiles that still have gold on them.
+   */
+  public int getRemainingGoldTileCount() {
+    return goldTilesRemaining;
+  }
+
+  /**
+   * Return the number of nodes that have been made, out of getOpenTileCount().
+   */
+  public int getNodesMade() {
+    return nodesMade;
+  }
+
+  /**
+   * Return the bytes retained by the tiles: see the class comment.
+   */
+  public long getTileBytes() {
+    return tileBytes;
+  }
+
+  /**
+   * Return the bytes retained by the edges: see the class comment.
+   */
+  public long getEdgeBytes() {
+    return edgeBytes;
+  }
+
+  /**
+   * Return the bytes retained by the nodes: see the class comment.
+   */
+  public long getNodeBytes() {
+    return nodeBytes;
+  }
+
+  /**
+   * Return the bytes retained by caches: see the class comment.
+   */
+  public long getCacheBytes() {
+    return cacheBytes;
+  }
+
+  /**
+   * Return the bytes of the layout that are mapped from a file rather than on the heap.
+   */
+  public long getMappedBytes() {
+    return mappedBytes;
+  }
+
+  /**
+   * Return the total bytes retained on the heap by the cavern.
+   */
+  public long getRetainedBytes() {
+    return tileBytes + edgeBytes + nodeBytes + cacheBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "Size             : " + rows + "x" + cols + "\n"
+        + "Open tiles       : " + openTiles + " (" + nodesMade + " nodes made)\n"
+        + "Edges            : " + getEdgeCount() + "\n"
+        + "Degrees 0..4     : " + Arrays.toString(degreeCounts) + "\n"
+        + "Gold tiles       : " + goldTiles + " (" + goldTilesRemaining + " remaining)\n"
+        + "Retained bytes   : " + getRetainedBytes() + " (tiles " + tileBytes
+        + ", edges " + edgeBytes + ", nodes " + nodeBytes + ", caches " + cacheBytes + ")"
+        + (mappedBytes > 0 ? "\nMapped bytes     : " + mappedBytes : "");
+  }
+}
@@ -0,0 +1,100 @@
+package game;
+
+/**
+ * An instance holds the layout of a cavern: which cells of its grid are open, the
+ * original gold and the type of each open tile, and the edges between them.
+ * The open tiles are identified by their ids, 0..count()-1 in row-major order.
+ * <p>
+ * The exits of the open tile with id i are the slots k with
+ * exitStart(i) <= k < exitStart(i + 1). A slot may be empty, in which case its
+ * target is -1; every other slot holds an edge to an adjacent open tile.
+ * <p>
+ * Stores never change once built, so any number of caverns (and threads) may share one.
+ * The state of a game, such as the gold that has been picked up, is kept by Cavern.
+ */
+interface CavernStore {
+  /**
+   * Return the number of rows in the grid.
+   */
+  int getRowCount();
+
+  /**
+   * Return the number of columns in the grid.
+   */
+  int getColumnCount();
+
+  /**
+   * Return the number of open tiles.
+   */
+  int count();
+
+  /**
+   * Return the id of the open tile at (r, c), or -1 if it is a wall.
+   * Precondition: (r, c) is on the grid.
+   */
+  int idAt(int r, int c);
+
+  /**
+   * Return the row-major index (row * cols + col) of the open tile with id id.
+   * Precondition: 0 <= id < count().
+   */
+  long cellWithId(int id);
+
+  /**
+   * Return word w of the bitmap of open cells: bit b is set iff cell 64 * w + b is open.
+   */
+  long word(int w);
+
+  /**
+   * Return the id of the entrance.
+   */
+  int getEntranceId();
+
+  /**
+   * Return the id of the target (which may be the entrance).
+   */
+  int getTargetId();
+
+  /**
+   * Return the gold originally on the open tile with id id.
+   */
+  int getGold(int id);
+
+  /**
+   * Return the type of the open tile with id id.
+   */
+  Tile.Type getType(int id);
+
+  /**
+   * Return the first exit slot of the open tile with id i. See the class comment.
+   * Precondition: 0 <= i <= count().
+   */
+  int exitStart(int i);
+
+  /**
+   * Return the id of the tile at the other end of exit slot k, or -1 if it is empty.
+   */
+  int exitTarget(int k);
+
+  /**
+   * Return the weight of the edge in exit slot k.
+   * Precondition: slot k is not empty.
+   */
+  int exitWeight(int k);
+
+  /**
+   * Return an estimate of the bytes this store retains on the heap for its open
+   * tiles, their gold and types (see CavernStats).
+   */
+  long tileBytes();
+
+  /**
+   * Return an estimate of the bytes this store retains on the heap for its edges.
+   */
+  long edgeBytes();
+
+  /**
+   * Return the number of bytes of this store that are mapped from a file, or 0.
+   */
+  long mappedBytes();
+}
@@ -0,0 +1,356 @@
+package game;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * An instance parses a cavern in the text format written by Cavern.serialize():
+ * <pre>
+ *   rows:cols,trgt:targetId
+ *   id,row,col,gold,TYPE=otherId-weight,otherId-weight,...
+ *   ...
+ * </pre>
+ * It reads each character once, straight into arrays of primitives, without making a
+ * string or any other object per line. An edge may name a tile whose line comes later,
+ * so edges are kept by the id in the file until every line has been read, and are then
+ * resolved in one pass. The cavern is the same as Cavern.deserialize() would return.
+ */
+abstract class CavernTextReader {
+  private static final Tile.Type[] TILE_TYPES = Tile.Type.values();
+  private static final int EOF = -1;
+
+  private int rows;
+  private int cols;
+  private long targetFileId;
+
+  /** The tiles, in the order of their lines. */
+  private int size;
+  private long[] fileIds = new long[64];
+  private int[] cells = new int[64];
+  private int[] golds = new int[64];
+  private byte[] types = new byte[64];
+
+  /** The edges, from the tile of line edgeFrom[k] to the tile with file id edgeTo[k]. */
+  private int edgeCount;
+  private int[] edgeFrom = new int[256];
+  private long[] edgeTo = new long[256];
+  private byte[] edgeWeights = new byte[256];
+
+  /** The line being read, for error messages, and the last character read. */
+  private int line = 1;
+  private int ch;
+
+  /**
+   * Return the next character of the input, or EOF if there is none.
+   */
+  abstract int next() throws IOException;
+
+  /**
+   * Return the cavern in the text in buf, from its position to its limit,
+   * and advance the position of buf to its limit. The text must be ASCII.
+   * Throw an IllegalArgumentException if it is not in the format of Cavern.serialize().
+   */
+  static Cavern read(ByteBuffer buf) {
+    CavernTextReader reader = new CavernTextReader() {
+      @Override
+      int next() {
+        return (buf.hasRemaining() ? buf.get() & 0xFF : EOF);
+      }
+    };
+    try {
+      return reader.parse();
+    } catch (IOException e) {
+      throw new AssertionError(e); // a buffer cannot fail to be read
+    }
+  }
+
+  /**
+   * Return the cavern in the text read from in, until it ends. in is read in blocks,
+   * so it need not be buffered.
+   * Throw an IllegalArgumentException if it is not in the format of Cavern.serialize().
+   */
+  static Cavern read(Reader in) throws IOException {
+    CavernTextReader reader = new CavernTextReader() {
+      private final char[] block = new char[1 << 13];
+      private int pos;
+      private int limit;
+
+      @Override
+      int next() throws IOException {
+        if (pos == limit) {
+          limit = in.read(block);
+          pos = 0;
+          if (limit <= 0) {
+            limit = 0;
+            return EOF;
+          }
+        }
+        return block[pos++];
+      }
+    };
+    return reader.parse();
+  }
+
+  /**
+   * Read the whole input and return the cavern it holds.
+   */
+  private Cavern parse() throws IOException {
+    ch = next();
+    rows = (int) readNumber(Integer.MAX_VALUE);
+    expect(':');
+    cols = (int) readNumber(Integer.MAX_VALUE);
+    expect(',');
+    while (ch != ':' && ch != '\n' && ch != EOF) {
+      ch = next();
+    }
+    expect(':');
+    targetFileId = readNumber(Long.MAX_VALUE);
+    endLine();
+    if (rows < 1 || cols < 1 || (long) rows * cols > Constants.MAX_CELLS) {
+      throw error("invalid size " + rows + "x" + cols);
+    }
+
+    while (ch != EOF) {
+      if (ch == '\n' || ch == '\r') {
+        endLine();
+        continue;
+      }
+      readTile();
+      endLine();
+    }
+    return build();
+  }
+
+  /**
+   * Read the line of one tile, up to the end of the line.
+   */
+  private void readTile() throws IOException {
+    if (size == fileIds.length) {
+      fileIds = Arrays.copyOf(fileIds, 2 * size);
+      cells = Arrays.copyOf(cells, 2 * size);
+      golds = Arrays.copyOf(golds, 2 * size);
+      types = Arrays.copyOf(types, 2 * size);
+    }
+    fileIds[size] = readNumber(Long.MAX_VALUE);
+    expect(',');
+    int r = (int) readNumber(Integer.MAX_VALUE);
+    expect(',');
+    int c = (int) readNumber(Integer.MAX_VALUE);
+    expect(',');
+    golds[size] = (int) readNumber(Integer.MAX_VALUE);
+    expect(',');
+    types[size] = (byte) readType().ordinal();
+    expect('=');
+    if (r >= rows || c >= cols) {
+      throw error("tile (" + r + ", " + c + ") is not in the cavern");
+    }
+    cells[size] = r * cols + c;
+
+    if (ch != '\n' && ch != '\r' && ch != EOF) {
+      while (true) {
+        if (edgeCount == edgeFrom.length) {
+          edgeFrom = Arrays.copyOf(edgeFrom, 2 * edgeCount);
+          edgeTo = Arrays.copyOf(edgeTo, 2 * edgeCount);
+          edgeWeights = Arrays.copyOf(edgeWeights, 2 * edgeCount);
+        }
+        edgeFrom[edgeCount] = size;
+        edgeTo[edgeCount] = readNumber(Long.MAX_VALUE);
+        expect('-');
+        int w = (int) readNumber(Byte.MAX_VALUE);
+        if (w == 0) {
+          throw error("edge of weight 0");
+        }
+        edgeWeights[edgeCount++] = (byte) w;
+        if (ch != ',') {
+          break;
+        }
+        ch = next();
+      }
+    }
+    size++;
+  }
+
+  /**
+   * Read and return the name of a Tile.Type, ending at the next '='.
+   * Only the characters of the name are compared; no string is made.
+   */
+  private Tile.Type readType() throws IOException {
+    // Bit t of possible is set iff what has been read so far is a prefix of type t.
+    int possible = (1 << TILE_TYPES.length) - 1;
+    int length = 0;
+    while (ch != '=' && ch != '\n' && ch != EOF) {
+      for (int t = 0; t < TILE_TYPES.length; t++) {
+        String name = TILE_TYPES[t].name();
+        if (length >= name.length() || name.charAt(length) != ch) {
+          possible &= ~(1 << t);
+        }
+      }
+      length++;
+      ch = next();
+    }
+    for (int t = 0; t < TILE_TYPES.length; t++) {
+      if ((possible & (1 << t)) != 0 && TILE_TYPES[t].name().length() == length) {
+        return TILE_TYPES[t];
+      }
+    }
+    throw error("unknown tile type");
+  }
+
+  /**
+   * Read and return a non-negative decimal number no greater than max.
+   */
+  private long readNumber(long max) throws IOException {
+    if (ch < '0' || ch > '9') {
+      throw error("expected a number");
+    }
+    long v = 0;
+    do {
+      int digit = ch - '0';
+      if (v > (max - digit) / 10) {
+        throw error("number too large");
+      }
+      v = 10 * v + digit;
+      ch = next();
+    } while (ch >= '0' && ch <= '9');
+    return v;
+  }
+
+  /**
+   * Read the character c.
+   */
+  private void expect(char c) throws IOException {
+    if (ch != c) {
+      throw error("expected '" + c + "'");
+    }
+    ch = next();
+  }
+
+  /**
+   * Read the end of a line: "\n", "\r\n", or the end of the input.
+   */
+  private void endLine() throws IOException {
+    if (ch == '\r') {
+      ch = next();
+    }
+    if (ch == '\n') {
+      ch = next();
+      line++;
+    } else if (ch != EOF) {
+      throw error("expected the end of the line");
+    }
+  }
+
+  /**
+   * Return the exception that reports message, at the current line if there is one.
+   */
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException("Cavern text" + (line > 0 ? ", line " + line : "")
+                                        + ": " + message);
+  }
+
+  /**
+   * Return the cavern whose tiles and edges have been read, resolving the file id
+   * at the far end of each edge to the line of its tile.
+   */
+  private Cavern build() {
+    line = 0; // errors from here on are not about one line
+    if (size == 0) {
+      throw error("no tiles");
+    }
+
+    // lineOf[k] is the line of the tile with the kth smallest file id, sorted[k].
+    // serialize() numbers the lines 0, 1, 2, ..., so the lookup is usually direct.
+    long[] sorted = null;
+    int[] lineOf = null;
+    boolean dense = true;
+    for (int i = 0; i < size && dense; i++) {
+      dense = (fileIds[i] == i);
+    }
+    if (!dense) {
+      sorted = Arrays.copyOf(fileIds, size);
+      Arrays.sort(sorted);
+      lineOf = new int[size];
+      for (int i = 0; i < size; i++) {
+        lineOf[Arrays.binarySearch(sorted, fileIds[i])] = i;
+      }
+      for (int k = 1; k < size; k++) {
+        if (sorted[k] == sorted[k - 1]) {
+          throw error("two tiles with id " + sorted[k]);
+        }
+      }
+    }
+
+    BitSet open = new BitSet();
+    for (int i = 0; i < size; i++) {
+      if (open.get(cells[i])) {
+        throw error("two tiles at cell " + cells[i]);
+      }
+      open.set(cells[i]);
+    }
+    OpenCells openCells = new OpenCells(rows, cols, open);
+    int[] idOfLine = new int[size];
+    int[] gold = new int[size];
+    byte[] tileTypes = new byte[size];
+    int entranceId = -1;
+    for (int i = 0; i < size; i++) {
+      int id = openCells.idAt(cells[i] / cols, cells[i] % cols);
+      idOfLine[i] = id;
+      gold[id] = golds[i];
+      tileTypes[id] = types[i];
+      if (types[i] == Tile.Type.ENTRANCE.ordinal()) {
+        entranceId = id;
+      }
+    }
+    int targetLine = lineWithFileId(targetFileId, sorted, lineOf);
+    if (entranceId < 0 || targetLine < 0) {
+      throw error("no entrance or no target");
+    }
+
+    // Pack the edges, keeping the order in which each tile lists its exits.
+    int[] start = new int[size + 1];
+    int[] to = new int[edgeCount];
+    for (int k = 0; k < edgeCount; k++) {
+      int other = lineWithFileId(edgeTo[k], sorted, lineOf);
+      if (other < 0) {
+        throw error("edge to unknown tile " + edgeTo[k]);
+      }
+      int from = cells[edgeFrom[k]];
+      int dist = Math.abs(from / cols - cells[other] / cols)
+          + Math.abs(from % cols - cells[other] % cols);
+      if (dist != 1) {
+        throw error("edge between tiles that are not adjacent");
+      }
+      to[k] = idOfLine[other];
+      start[idOfLine[edgeFrom[k]] + 1]++;
+    }
+    for (int i = 0; i < size; i++) {
+      start[i + 1] += start[i];
+    }
+    int[] next = Arrays.copyOf(start, size);
+    int[] target = new int[edgeCount];
+    byte[] weight = new byte[edgeCount];
+    for (int k = 0; k < edgeCount; k++) {
+      int slot = next[idOfLine[edgeFrom[k]]]++;
+      target[slot] = to[k];
+      weight[slot] = edgeWeights[k];
+    }
+
+    return new Cavern(new ArrayStore(openCells, gold, tileTypes, start, target, weight,
+                                     entranceId, idOfLine[targetLine]));
+  }
+
+  /**
+   * Return the line of the tile with file id fileId, or -1 if there is none.
+   * sorted and lineOf are as in build(), or null if the ids are the line numbers.
+   */
+  private int lineWithFileId(long fileId, long[] sorted, int[] lineOf) {
+    if (sorted == null) {
+      return (fileId < size ? (int) fileId : -1);
+    }
+    int k = Arrays.binarySearch(sorted, fileId);
+    return (k < 0 ? -1 : lineOf[k]);
+  }
+}
@@ -6,6 +6,7 @@ public final class Constants {
   static final int MAX_ROWS = 25;
   static final int MIN_COLS = 12;
   static final int MAX_COLS = 40;
+  static final long MAX_CELLS = 1L << 28;   //largest grid that can be asked for
   static final double MIN_BONUS = 1.0;
   static final double EXTRA_TIME_FACTOR = 0.3;     //bigger is nicer - addition to total multiplier
   static final double NO_BONUS_LENGTH = 3;
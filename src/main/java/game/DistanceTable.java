@@ -0,0 +1,278 @@
+package game;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * An instance holds shortest-path lengths precomputed for one cavern: the distance
+ * from every open tile to the target, and optionally the distances between each pair
+ * of a chosen set of terminal tiles (such as the entrance, the target and the tiles
+ * with gold; or every tile, for all pairs). It can be saved with its cavern by
+ * CavernCodec, so that a cavern that is loaded again needs no search to answer them.
+ * <p>
+ * Tables are made and used by Cavern; see Cavern.precomputeDistances().
+ * A table records a structural checksum of its cavern: of its size, its open tiles,
+ * its target and the weights of its edges. A cavern ignores a table whose checksum is
+ * not its own, so a table cannot give wrong answers for a cavern that has changed.
+ * Distances are Integer.MAX_VALUE for tiles that cannot be reached.
+ */
+final class DistanceTable {
+  /**
+   * The tag of a table among the sections of an encoded cavern.
+   */
+  static final int SECTION_TAG = 1;
+
+  private final long checksum;
+  private final int[] toTarget;
+  /**
+   * The ids of the terminal tiles, in increasing order, and the distances between
+   * them: between terminals[a] and terminals[b], for a < b, is between[pair(a, b)].
+   */
+  private final int[] terminals;
+  private final int[] between;
+
+  /**
+   * Constructor: a table with checksum sum, distances dist to the target, and
+   * distances btw between the terminals terms (as described for the fields).
+   */
+  private DistanceTable(long sum, int[] dist, int[] terms, int[] btw) {
+    checksum = sum;
+    toTarget = dist;
+    terminals = terms;
+    between = btw;
+  }
+
+  /**
+   * Return a table of the distances from every open tile of cavern to its target.
+   */
+  static DistanceTable compute(Cavern cavern) {
+    return compute(cavern, Collections.emptyList());
+  }
+
+  /**
+   * Return a table of the distances from every open tile of cavern to its target,
+   * and between each pair of the nodes of terminals, which must be open nodes of cavern.
+   * This takes one search of the cavern for each terminal.
+   * Throw an IllegalArgumentException if a terminal is not an open node of cavern.
+   */
+  static DistanceTable compute(Cavern cavern, Collection<Node> terminals) {
+    int[] terms = new int[terminals.size()];
+    int t = 0;
+    for (Node n : terminals) {
+      int id = cavern.indexOf(n);
+      if (id < 0) {
+        throw new IllegalArgumentException("compute: " + n + " is not an open node");
+      }
+      terms[t++] = id;
+    }
+    Arrays.sort(terms);
+    for (int a = 1; a < terms.length; a++) {
+      if (terms[a] == terms[a - 1]) {
+        throw new IllegalArgumentException("compute: terminal " + terms[a] + " given twice");
+      }
+    }
+
+    int k = terms.length;
+    int[] btw = new int[pairCount(k)];
+    for (int a = 0; a < k; a++) {
+      int[] dist = cavern.distancesFrom(terms[a]);
+      for (int b = a + 1; b < k; b++) {
+        btw[pair(a, b, k)] = dist[terms[b]];
+      }
+    }
+    return new DistanceTable(checksum(cavern), cavern.distancesToTarget(), terms, btw);
+  }
+
+  /**
+   * Return the number of pairs of k terminals.
+   * Throw an IllegalArgumentException if there are too many to hold in an array.
+   */
+  private static int pairCount(int k) {
+    long pairs = (long) k * (k - 1) / 2;
+    if (pairs > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("DistanceTable: too many terminals: " + k);
+    }
+    return (int) pairs;
+  }
+
+  /**
+   * Return the index of the pair of terminals a < b of k in between: the pairs are
+   * in row-major order of the upper triangle of a k x k matrix.
+   */
+  private static int pair(int a, int b, int k) {
+    return (int) ((long) a * (2 * k - a - 1) / 2 + (b - a - 1));
+  }
+
+  /**
+   * Return the structural checksum of cavern: a hash of its size, its target, its
+   * open tiles and the weights of its edges, but not of its gold.
+   */
+  static long checksum(Cavern cavern) {
+    final CavernStore store = cavern.store();
+    final int rows = store.getRowCount();
+    final int cols = store.getColumnCount();
+    long h = mix(mix(mix(0, rows), cols), store.getTargetId());
+    for (int w = 0; w < OpenCells.wordCount(rows, cols); w++) {
+      h = mix(h, store.word(w));
+    }
+    for (int i = 0; i < store.count(); i++) {
+      long cell = store.cellWithId(i);
+      int r = (int) (cell / cols);
+      int c = (int) (cell % cols);
+      int south = (r + 1 < rows ? store.idAt(r + 1, c) : -1);
+      int east = (c + 1 < cols ? store.idAt(r, c + 1) : -1);
+      int southWeight = (south < 0 ? 0 : cavern.weightBetween(i, south));
+      int eastWeight = (east < 0 ? 0 : cavern.weightBetween(i, east));
+      h = mix(h, southWeight << 8 | eastWeight);
+    }
+    return h;
+  }
+
+  /**
+   * Return hash h with v mixed into it.
+   */
+  private static long mix(long h, long v) {
+    long x = (h ^ v) * 0x9E3779B97F4A7C15L;
+    return x ^ (x >>> 29);
+  }
+
+  /**
+   * Return the structural checksum of the cavern this table was computed for.
+   */
+  long getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * Return the length of the shortest path from the open tile with id i to the target.
+   */
+  int toTarget(int i) {
+    return toTarget[i];
+  }
+
+  /**
+   * Return true iff dist is the array of the distances to the target of this table,
+   * which it may share with its cavern.
+   */
+  boolean sharesToTarget(int[] dist) {
+    return toTarget == dist;
+  }
+
+  /**
+   * Return the length of the shortest path between the open tiles with ids i and j,
+   * or -1 if they are not both terminals of this table.
+   */
+  int between(int i, int j) {
+    if (i == j) {
+      return 0;
+    }
+    int a = Arrays.binarySearch(terminals, Math.min(i, j));
+    int b = Arrays.binarySearch(terminals, Math.max(i, j));
+    if (a < 0 || b < 0) {
+      return -1;
+    }
+    return between[pair(a, b, terminals.length)];
+  }
+
+  /**
+   * Return an estimate of the bytes this table retains on the heap.
+   */
+  long retainedBytes() {
+    return CavernStats.objectBytes(8 + 3 * CavernStats.REFERENCE)
+        + CavernStats.arrayBytes(toTarget.length, 4) + CavernStats.arrayBytes(terminals.length, 4)
+        + CavernStats.arrayBytes(between.length, 4);
+  }
+
+  /**
+   * Return the number of bytes in the encoding of this table.
+   */
+  int encodedSize() {
+    int size = 8 + CavernCodec.varintSize(toTarget.length)
+        + CavernCodec.varintSize(terminals.length);
+    for (int d : toTarget) {
+      size += CavernCodec.varintSize(d);
+    }
+    for (int a = 0; a < terminals.length; a++) {
+      size += CavernCodec.varintSize(terminals[a] - (a == 0 ? 0 : terminals[a - 1]));
+    }
+    for (int d : between) {
+      size += CavernCodec.varintSize(d);
+    }
+    return size;
+  }
+
+  /**
+   * Put the encoding of this table in buf:
+   * <pre>
+   *   long    checksum
+   *   varint  number of open tiles, and the distance of each to the target
+   *   varint  number of terminals, and the ids of the terminals, each as its
+   *           difference from the one before
+   *   varint  the distance between each pair of terminals a &lt; b, in row-major order
+   * </pre>
+   */
+  void encode(ByteBuffer buf) {
+    buf.putLong(checksum);
+    CavernCodec.putVarint(buf, toTarget.length);
+    for (int d : toTarget) {
+      CavernCodec.putVarint(buf, d);
+    }
+    CavernCodec.putVarint(buf, terminals.length);
+    for (int a = 0; a < terminals.length; a++) {
+      CavernCodec.putVarint(buf, terminals[a] - (a == 0 ? 0 : terminals[a - 1]));
+    }
+    for (int d : between) {
+      CavernCodec.putVarint(buf, d);
+    }
+  }
+
+  /**
+   * Return the table encoded in buf, from its position to its limit.
+   * Throw an IllegalArgumentException if buf does not hold a valid encoding.
+   */
+  static DistanceTable decode(ByteBuffer buf) {
+    try {
+      return decodeTable(buf);
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("decode: truncated distance table", e);
+    }
+  }
+
+  /**
+   * Return the table encoded in buf, as decode() does, but letting a
+   * BufferUnderflowException through.
+   */
+  private static DistanceTable decodeTable(ByteBuffer buf) {
+    long sum = buf.getLong();
+    int n = CavernCodec.getVarint(buf);
+    if (n > buf.remaining()) {
+      throw new IllegalArgumentException("decode: invalid distance table");
+    }
+    int[] dist = new int[n];
+    for (int i = 0; i < n; i++) {
+      dist[i] = CavernCodec.getVarint(buf);
+    }
+    int k = CavernCodec.getVarint(buf);
+    if (k > n || k > buf.remaining()) {
+      throw new IllegalArgumentException("decode: invalid distance table");
+    }
+    int[] terms = new int[k];
+    for (int a = 0; a < k; a++) {
+      terms[a] = (a == 0 ? 0 : terms[a - 1]) + CavernCodec.getVarint(buf);
+      if (terms[a] >= n || (a > 0 && terms[a] <= terms[a - 1])) {
+        throw new IllegalArgumentException("decode: invalid distance table");
+      }
+    }
+    int[] btw = new int[pairCount(k)];
+    for (int p = 0; p < btw.length; p++) {
+      btw[p] = CavernCodec.getVarint(buf);
+    }
+    if (buf.hasRemaining()) {
+      throw new IllegalArgumentException("decode: invalid distance table");
+    }
+    return new DistanceTable(sum, dist, terms, btw);
+  }
+}
@@ -1,6 +1,7 @@
 package game;
 
 import java.util.Collection;
+import java.util.List;
 
 /**
  * The state of the game while escaping from the cavern.
@@ -30,6 +31,19 @@ public interface EscapeState {
    */
   Collection<Node> getVertices();
 
+  /**
+   * Return the length of the shortest path from start to end: the least time it takes
+   * to walk from one to the other.
+   * Throw an IllegalArgumentException if either is not a node of the graph.
+   */
+  int getShortestPathLength(Node start, Node end);
+
+  /**
+   * Return the nodes of a shortest path from start to end, both included, in order.
+   * Throw an IllegalArgumentException if either is not a node of the graph.
+   */
+  List<Node> getShortestPath(Node start, Node end);
+
   /**
    * Change your current location n.
    * Throw an IllegalArgumentException if n is not a neihgbor of your current location.
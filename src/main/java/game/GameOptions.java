@@ -0,0 +1,131 @@
+package game;
+
+import java.nio.file.Path;
+
+/**
+ * An instance holds the options with which GameState.runNewGame() runs a game. A new
+ * instance has the options of runNewGame(seed, useGui): a GUI, the SEQUENTIAL seed
+ * scheme, the size given by the seed, no checkpoint, no statistics and no cache.
+ * Each setter returns this instance, so that options can be set in a chain:
+ * <pre>
+ *   GameState.runNewGame(seed, new GameOptions().useGui(false).size(100, 200));
+ * </pre>
+ */
+public final class GameOptions {
+  private boolean useGui = true;
+  private SeedScheme scheme = SeedScheme.SEQUENTIAL;
+  private int rows;
+  private int cols;
+  private Path checkpoint;
+  private boolean printStats;
+  private CavernCache cache;
+
+  /**
+   * Show the game in a GUI only if useGui is true.
+   */
+  public GameOptions useGui(boolean useGui) {
+    this.useGui = useGui;
+    return this;
+  }
+
+  /**
+   * Make the caverns from the seed as interpreted by scheme.
+   */
+  public GameOptions scheme(SeedScheme scheme) {
+    if (scheme == null) {
+      throw new IllegalArgumentException("scheme: null");
+    }
+    this.scheme = scheme;
+    return this;
+  }
+
+  /**
+   * Make caverns of rows rows and cols columns. A size of 0 means the size given by
+   * the seed. runNewGame() throws an IllegalArgumentException if the caverns cannot
+   * have that size. Caverns of more than 25 rows or 40 columns (the largest sizes a
+   * seed gives) are dug in tiles, as caves joined by corridors, rather than breadth first like
+   * those of the sizes a seed gives (see CavernFactory.digsInTiles()).
+   */
+  public GameOptions size(int rows, int cols) {
+    this.rows = rows;
+    this.cols = cols;
+    return this;
+  }
+
+  /**
+   * Write a snapshot of the game to the file checkpoint (unless it is null) as the
+   * escape phase starts. GameState.resumeGame() can then play the escape phase again
+   * from there.
+   */
+  public GameOptions checkpoint(Path checkpoint) {
+    this.checkpoint = checkpoint;
+    return this;
+  }
+
+  /**
+   * If printStats is true, print the statistics of both caverns (see Cavern.getStats())
+   * once the game is over.
+   */
+  public GameOptions printStats(boolean printStats) {
+    this.printStats = printStats;
+    return this;
+  }
+
+  /**
+   * Take the caverns from cache (unless it is null, or the seed is 0), so that a game
+   * that is run again (as by TXTmain -n with -s) is not generated again.
+   */
+  public GameOptions cache(CavernCache cache) {
+    this.cache = cache;
+    return this;
+  }
+
+  /**
+   * Return true if the game is shown in a GUI.
+   */
+  boolean hasGui() {
+    return useGui;
+  }
+
+  /**
+   * Return the scheme by which the seed is interpreted.
+   */
+  SeedScheme getScheme() {
+    return scheme;
+  }
+
+  /**
+   * Return the number of rows of the caverns, or 0 for the size given by the seed.
+   */
+  int getRowCount() {
+    return rows;
+  }
+
+  /**
+   * Return the number of columns of the caverns, or 0 for the size given by the seed.
+   */
+  int getColumnCount() {
+    return cols;
+  }
+
+  /**
+   * Return the file to which a snapshot is written, or null.
+   */
+  Path getCheckpoint() {
+    return checkpoint;
+  }
+
+  /**
+   * Return true if the statistics of the caverns are printed.
+   */
+  boolean printsStats() {
+    return printStats;
+  }
+
+  /**
+   * Return the cache from which the caverns are taken, or null.
+   */
+  CavernCache getCache() {
+    return cache;
+  }
+}
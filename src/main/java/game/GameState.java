@@ -2,32 +2,39 @@ package game;
 
 import static game.Constants.EXTRA_TIME_FACTOR;
 import static game.Constants.MAX_BONUS;
-import static game.Constants.MAX_COLS;
-import static game.Constants.MAX_ROWS;
 import static game.Constants.MIN_BONUS;
-import static game.Constants.MIN_COLS;
-import static game.Constants.MIN_ROWS;
 import static game.Constants.NO_BONUS_LENGTH;
 
 import gui.GUI;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 import student.Explorer;
 
 public class GameState implements ExplorationState, EscapeState {
+  /**
+   * The first four bytes of a snapshot written by writeSnapshot(): "CAVS" in ASCII.
+   */
+  private static final int SNAPSHOT_MAGIC = 0x43415653;
+  private static final int SNAPSHOT_VERSION = 1;
 
   private final Cavern exploreCavern;
-  private final Cavern escapeCavern;
+  private final CavernFactory.Caverns caverns;
   private final Explorer explorer;
   private final Optional<GUI> gui;
   private final long seed;
@@ -42,14 +49,19 @@ public class GameState implements ExplorationState, EscapeState {
   private boolean exploreErrored = false;
   private boolean escapeErrored = false;
   private int minTimeToExplore;
+  /**
+   * The file to which a snapshot is written as the escape phase starts, or null.
+   */
+  private Path checkpoint;
 
   /**
    * Represents the current state of the game.
    */
   public GameState(Path exploreCavernPath, Path escapeCavernPath) throws IOException {
-    exploreCavern = Cavern.deserialize(Files.readAllLines(exploreCavernPath));
-    minTimeToExplore = exploreCavern.minPathLengthToTarget(exploreCavern.getEntrance());
-    escapeCavern = Cavern.deserialize(Files.readAllLines(escapeCavernPath));
+    exploreCavern = CavernCodec.load(exploreCavernPath);
+    minTimeToExplore = exploreCavern.minPathLengthFromEntrance();
+    caverns = new CavernFactory.Caverns(-1, exploreCavern, CompletableFuture.completedFuture(
+        CavernCodec.load(escapeCavernPath)));
 
     explorer = new Explorer();
 
@@ -68,22 +80,29 @@ public class GameState implements ExplorationState, EscapeState {
   /**
    * Constructor: a random instance with a GUI only if useGUI is true.
    */
-  private GameState(boolean useGui) {
-    this((new Random()).nextLong(), useGui);   // dodgy code - should reuse the random number
+  private GameState(boolean useGui, SeedScheme scheme, int rows, int cols) {
+    // dodgy code - should reuse the random number
+    this((new Random()).nextLong(), useGui, scheme, rows, cols);
   }
 
   /**
    * Constructor: a random instance with a GUI only if useGUI is true.
-   * The randomness is based on seed.
+   * The randomness is based on seed, as interpreted by scheme.
+   * The caverns have rows rows and cols columns, where a size of 0 means
+   * the size given by the seed.
+   * The escape cavern may still be being dug when this constructor returns.
    */
-  private GameState(long seed, boolean useGui) {
-    Random rand = new Random(seed);
-    final int rows = rand.nextInt(MAX_ROWS - MIN_ROWS + 1) + MIN_ROWS;
-    final int cols = rand.nextInt(MAX_COLS - MIN_COLS + 1) + MIN_COLS;
-    exploreCavern = Cavern.digExploreCavern(rows, cols, rand);
-    minTimeToExplore = exploreCavern.minPathLengthToTarget(exploreCavern.getEntrance());
-    Tile orbTile = exploreCavern.getTarget().getTile();
-    escapeCavern = Cavern.digEscapeCavern(rows, cols, orbTile.getRow(), orbTile.getColumn(), rand);
+  private GameState(long seed, boolean useGui, SeedScheme scheme, int rows, int cols) {
+    this(CavernFactory.generateConcurrently(seed, scheme, rows, cols), useGui);
+  }
+
+  /**
+   * Constructor: an instance played in cs, with a GUI only if useGUI is true.
+   */
+  private GameState(CavernFactory.Caverns cs, boolean useGui) {
+    caverns = cs;
+    exploreCavern = caverns.getExploreCavern();
+    minTimeToExplore = exploreCavern.minPathLengthFromEntrance();
 
     position = exploreCavern.getEntrance();
     stepsTaken = 0;
@@ -93,7 +112,7 @@ public class GameState implements ExplorationState, EscapeState {
     explorer = new Explorer();
     stage = Stage.EXPLORE;
 
-    this.seed = seed;
+    seed = caverns.getSeed();
 
     if (useGui) {
       gui = Optional.of(new GUI(exploreCavern, position.getTile().getRow(),
@@ -107,12 +126,196 @@ public class GameState implements ExplorationState, EscapeState {
    * Start running a new game.
    */
   public static int runNewGame(long seed, boolean useGui) {
+    return runNewGame(seed, new GameOptions().useGui(useGui));
+  }
+
+  /**
+   * Start running a new game with the given options (see GameOptions).
+   * A seed of 0 means a random game.
+   * Throw an IllegalArgumentException if the caverns cannot have the size of options.
+   */
+  public static int runNewGame(long seed, GameOptions options) {
+    SeedScheme scheme = options.getScheme();
+    int rows = options.getRowCount();
+    int cols = options.getColumnCount();
+    boolean useGui = options.hasGui();
+    CavernCache cache = options.getCache();
     GameState state;
-    if (seed != 0) {
-      state = new GameState(seed, useGui);
+    if (seed != 0 && cache != null) {
+      state = new GameState(cache.get(seed, scheme, rows, cols), useGui);
+    } else if (seed != 0) {
+      state = new GameState(seed, useGui, scheme, rows, cols);
     } else {
-      state = new GameState(useGui);
+      state = new GameState(useGui, scheme, rows, cols);
+    }
+    System.out.println("Seed : " + state.seed);
+    if (scheme != SeedScheme.SEQUENTIAL) {
+      System.out.println("Seed scheme : " + scheme.getVersion());
+    }
+    if (rows != 0 || cols != 0) {
+      int r = state.exploreCavern.getRowCount();
+      int c = state.exploreCavern.getColumnCount();
+      System.out.println("Size : " + r + "x" + c 
+                         + (CavernFactory.digsInTiles(r, c) ? " (dug in tiles)" : ""));
+    }
+    state.checkpoint = options.getCheckpoint();
+    state.run();
+    if (options.printsStats()) {
+      System.out.println("Explore cavern :\n" + state.exploreCavern.getStats());
+      System.out.println("Escape cavern :\n" + state.caverns.getEscapeCavern().getStats());
+    }
+    return state.getScore();
+  }
+
+  /**
+   * Resume the game whose snapshot is in the file at path, from the point at which
+   * the snapshot was written: the phase it was in is played from the position, time
+   * and gold it had then, and the escape phase follows an explore phase as usual.
+   * Throw an IllegalArgumentException if the file does not hold a valid snapshot.
+   */
+  public static int resumeGame(Path path, boolean useGui) throws IOException {
+    GameState state = readSnapshot(path, useGui);
+    System.out.println("Seed : " + state.seed);
+    System.out.println("Resumed : " + state.stage);
+    if (state.stage == Stage.EXPLORE) {
+      state.playExplore();
+      if (!state.exploreSucceeded) {
+        return state.getScore();
+      }
+      state.escape();
+    } else {
+      state.gui.ifPresent((g) -> g.moveTo(state.position));
+      state.playEscape();
+    }
+    return state.getScore();
+  }
+
+  /**
+   * Write a snapshot of this game to the file at path, replacing its contents.
+   * The snapshot holds both caverns, as they were made, with the gold picked up from
+   * them so far, the phase, position, steps taken, time remaining and gold collected,
+   * so that resumeGame() can carry on from this point without generating the caverns
+   * or playing the explore phase again.
+   * <pre>
+   *   int   MAGIC ("CAVS"), byte version (1)
+   *   long  seed, byte stage (ordinal), byte flags (1 if explore succeeded, 2 if it
+   *         failed with an error)
+   *   int   minimum time to explore, steps taken, time remaining, gold collected,
+   *         id of the position in the cavern of the stage
+   *   for the explore and then the escape cavern:
+   *     int    length of its encoding, then the encoding by CavernCodec
+   *     int    number of words, then long[] the ids of the tiles whose gold was picked up
+   * </pre>
+   */
+  public void writeSnapshot(Path path) throws IOException {
+    Cavern[] cavernsOfGame = {exploreCavern, escapeCavern()};
+    ByteBuffer[] codes = new ByteBuffer[2];
+    long[][] taken = new long[2][];
+    int size = 4 + 1 + 8 + 1 + 1 + 5 * 4;
+    for (int c = 0; c < 2; c++) {
+      // Encoded as made, so that the original gold on each tile is kept.
+      codes[c] = CavernCodec.encode(cavernsOfGame[c].copy());
+      taken[c] = cavernsOfGame[c].getGoldTaken().toLongArray();
+      size += 4 + codes[c].remaining() + 4 + 8 * taken[c].length;
+    }
+    Cavern current = (stage == Stage.EXPLORE ? exploreCavern : escapeCavern());
+
+    ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.putInt(SNAPSHOT_MAGIC);
+    buf.put((byte) SNAPSHOT_VERSION);
+    buf.putLong(seed);
+    buf.put((byte) stage.ordinal());
+    buf.put((byte) ((exploreSucceeded ? 1 : 0) | (exploreErrored ? 2 : 0)));
+    buf.putInt(minTimeToExplore);
+    buf.putInt(stepsTaken);
+    buf.putInt(timeRemaining);
+    buf.putInt(goldCollected);
+    buf.putInt(current.indexOf(position));
+    for (int c = 0; c < 2; c++) {
+      buf.putInt(codes[c].remaining());
+      buf.put(codes[c]);
+      buf.putInt(taken[c].length);
+      for (long word : taken[c]) {
+        buf.putLong(word);
+      }
+    }
+    buf.flip();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buf.hasRemaining()) {
+        channel.write(buf);
+      }
+    }
+  }
+
+  /**
+   * Return the game whose snapshot is in the file at path, with a GUI only if useGui
+   * is true. Throw an IllegalArgumentException if it is not a valid snapshot.
+   */
+  static GameState readSnapshot(Path path, boolean useGui) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+    try {
+      if (buf.getInt() != SNAPSHOT_MAGIC || buf.get() != SNAPSHOT_VERSION) {
+        throw new IllegalArgumentException("readSnapshot: not a game snapshot");
+      }
+      long seed = buf.getLong();
+      int stage = buf.get();
+      int flags = buf.get();
+      if (stage < 0 || stage >= Stage.values().length) {
+        throw new IllegalArgumentException("readSnapshot: invalid stage " + stage);
+      }
+      int minTimeToExplore = buf.getInt();
+      int stepsTaken = buf.getInt();
+      int timeRemaining = buf.getInt();
+      int goldCollected = buf.getInt();
+      int positionId = buf.getInt();
+      Cavern[] cavernsOfGame = new Cavern[2];
+      for (int c = 0; c < 2; c++) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+          throw new IllegalArgumentException("readSnapshot: truncated snapshot");
+        }
+        ByteBuffer code = buf.slice();
+        code.limit(length);
+        cavernsOfGame[c] = CavernCodec.decode(code);
+        if (code.hasRemaining()) {
+          throw new IllegalArgumentException("readSnapshot: invalid cavern");
+        }
+        buf.position(buf.position() + length);
+        long[] taken = new long[buf.getInt()];
+        for (int w = 0; w < taken.length; w++) {
+          taken[w] = buf.getLong();
+        }
+        cavernsOfGame[c].setGoldTaken(BitSet.valueOf(taken));
+      }
+
+      GameState state = new GameState(new CavernFactory.Caverns(seed, cavernsOfGame[0],
+          CompletableFuture.completedFuture(cavernsOfGame[1])), useGui);
+      state.stage = Stage.values()[stage];
+      state.exploreSucceeded = (flags & 1) != 0;
+      state.exploreErrored = (flags & 2) != 0;
+      state.minTimeToExplore = minTimeToExplore;
+      state.stepsTaken = stepsTaken;
+      state.timeRemaining = timeRemaining;
+      state.goldCollected = goldCollected;
+      Cavern current = cavernsOfGame[state.stage == Stage.EXPLORE ? 0 : 1];
+      if (positionId < 0 || positionId >= current.numOpenTiles()) {
+        throw new IllegalArgumentException("readSnapshot: invalid position " + positionId);
+      }
+      state.position = current.getNodeById(positionId);
+      return state;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("readSnapshot: truncated snapshot", e);
     }
+  }
+
+  /**
+   * Start running the game with seed in archive.
+   * Throw an IllegalArgumentException if archive has no game with seed.
+   */
+  public static int runArchivedGame(CavernArchive archive, long seed, boolean useGui) 
+      throws IOException {
+    GameState state = new GameState(archive.load(seed), useGui);
     System.out.println("Seed : " + state.seed);
     state.run();
     return state.getScore();
@@ -135,6 +338,13 @@ public class GameState implements ExplorationState, EscapeState {
     stepsTaken = 0;
     exploreSucceeded = false;
     position = exploreCavern.getEntrance();
+    playExplore();
+  }
+
+  /**
+   * Play the explore phase from the current position.
+   */
+  private void playExplore() {
     gui.ifPresent((g) -> g.setLighting(false));
     gui.ifPresent((g) -> g.updateCavern(exploreCavern, 0));
     gui.ifPresent((g) -> g.moveTo(position));
@@ -159,6 +369,7 @@ public class GameState implements ExplorationState, EscapeState {
 
   void escape() {
     stage = Stage.ESCAPE;
+    final Cavern escapeCavern = escapeCavern();
     Tile orbTile = exploreCavern.getTarget().getTile();
     position = escapeCavern.getNodeAt(orbTile.getRow(), orbTile.getColumn());
     if (exploreSucceeded) {
@@ -167,7 +378,21 @@ public class GameState implements ExplorationState, EscapeState {
       timeRemaining = escapeCavern.minPathLengthToTarget(position);
       gui.ifPresent((g) -> g.moveTo(position));
     }
+    if (checkpoint != null) {
+      try {
+        writeSnapshot(checkpoint);
+      } catch (IOException e) {
+        System.err.println("Could not write a snapshot to " + checkpoint + ": " + e);
+      }
+    }
+    playEscape();
+  }
 
+  /**
+   * Play the escape phase from the current position, with the time remaining.
+   */
+  private void playEscape() {
+    final Cavern escapeCavern = escapeCavern();
     gui.ifPresent((g) -> g.setLighting(true));
     gui.ifPresent((g) -> g.updateCavern(escapeCavern, timeRemaining));
 
@@ -197,6 +422,7 @@ public class GameState implements ExplorationState, EscapeState {
    * Return the time to escape.
    */
   private int computeTimeToEscape() {
+    final Cavern escapeCavern = escapeCavern();
     int minTimeToEscape = escapeCavern.minPathLengthToTarget(position);
     return (int) (minTimeToEscape + EXTRA_TIME_FACTOR 
         * (Cavern.MAX_EDGE_WEIGHT + 1) * escapeCavern.numOpenTiles() / 2);
@@ -226,16 +452,17 @@ public class GameState implements ExplorationState, EscapeState {
       throw new IllegalStateException("moveTo(ID) can only be called while exploring!");
     }
 
-    for (Node n : position.getNeighbours()) {
-      if (n.getId() == id) {
-        position = n;
-        stepsTaken++;
-        gui.ifPresent((g) -> g.updateBonus(computeBonusFactor()));
-        gui.ifPresent((g) -> g.moveTo(n));
-        return;
-      }
+    if (id < 0 || id >= exploreCavern.numOpenTiles()) {
+      throw new IllegalArgumentException("moveTo: Node must be adjacent to position");
     }
-    throw new IllegalArgumentException("moveTo: Node must be adjacent to position");
+    Node n = exploreCavern.getNodeById(id);
+    if (!position.getNeighbours().contains(n)) {
+      throw new IllegalArgumentException("moveTo: Node must be adjacent to position");
+    }
+    position = n;
+    stepsTaken++;
+    gui.ifPresent((g) -> g.updateBonus(computeBonusFactor()));
+    gui.ifPresent((g) -> g.moveTo(n));
   }
 
   /**
@@ -251,19 +478,16 @@ public class GameState implements ExplorationState, EscapeState {
     if (stage != Stage.ESCAPE) {
       throw new IllegalStateException("moveTo(Node) can only be called when escaping!");
     }
+    // getEdge fails with an IllegalArgumentException if n is not adjacent to position.
     int distance = position.getEdge(n).length;
     if (timeRemaining - distance < 0) {
       throw new OutOfTimeException();
     }
 
-    if (position.getNeighbours().contains(n)) {
-      position = n;
-      timeRemaining -= distance;
-      gui.ifPresent((g) -> g.updateTimeRemaining(timeRemaining));
-      gui.ifPresent((g) -> g.moveTo(n));
-    } else {
-      throw new IllegalArgumentException("moveTo: Node must be adjacent to position");
-    }
+    position = n;
+    timeRemaining -= distance;
+    gui.ifPresent((g) -> g.updateTimeRemaining(timeRemaining));
+    gui.ifPresent((g) -> g.moveTo(n));
   }
 
 
@@ -329,7 +553,35 @@ public class GameState implements ExplorationState, EscapeState {
       throw new IllegalStateException("getEntrance: Error, " 
           + "current Node may not be accessed unless in ESCAPE");
     }
-    return escapeCavern.getTarget();
+    return escapeCavern().getTarget();
+  }
+
+  @Override
+  public int getShortestPathLength(Node start, Node end) {
+    checkEscapeNodes("getShortestPathLength", start, end);
+    return escapeCavern().minPathLength(start, end);
+  }
+
+  @Override
+  public List<Node> getShortestPath(Node start, Node end) {
+    checkEscapeNodes("getShortestPath", start, end);
+    return Collections.unmodifiableList(escapeCavern().shortestPath(start, end));
+  }
+
+  /**
+   * Throw an IllegalStateException, naming method, unless in ESCAPE, and an
+   * IllegalArgumentException unless start and end are nodes of the escape cavern.
+   */
+  private void checkEscapeNodes(String method, Node start, Node end) {
+    if (stage != Stage.ESCAPE) {
+      throw new IllegalStateException(method + ": Error, " 
+          + "paths may not be found unless in ESCAPE");
+    }
+    Cavern escapeCavern = escapeCavern();
+    if (start == null || end == null 
+        || escapeCavern.indexOf(start) < 0 || escapeCavern.indexOf(end) < 0) {
+      throw new IllegalArgumentException(method + ": Error, not a node of the cavern");
+    }
   }
 
   @Override
@@ -338,7 +590,7 @@ public class GameState implements ExplorationState, EscapeState {
       throw new IllegalStateException("getVertices: Error, " 
           + "Vertices may not be accessed unless in ESCAPE");
     }
-    return Collections.unmodifiableSet(escapeCavern.getGraph());
+    return Collections.unmodifiableSet(escapeCavern().getGraph());
   }
 
   @Override
@@ -360,6 +612,13 @@ public class GameState implements ExplorationState, EscapeState {
     return timeRemaining;
   }
 
+  /**
+   * Return the cavern of the escape phase, waiting for it to be dug if necessary.
+   */
+  private Cavern escapeCavern() {
+    return caverns.getEscapeCavern();
+  }
+
   int getGoldCollected() {
     return goldCollected;
   }
@@ -0,0 +1,177 @@
+package game;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * An instance is a priority queue of the ints 0..capacity-1, with int priorities,
+ * implemented as a 4-ary min-heap over arrays: no objects are created per element,
+ * and an instance can be emptied with clear() and used again. It is meant for searches
+ * over the ids of the nodes of a cavern. A node of the heap has four children rather
+ * than two, so the heap is half as deep: polls compare more children per level, but
+ * adds and decreasePriority(), which are more frequent in a search, move up fewer levels.
+ */
+class IntMinHeap {
+  private static final int ARITY = 4;
+
+  private int size; // number of elements in the priority queue (and heap)
+
+  /**
+   * heap[0..size-1] is a min-heap of elements:
+   * 1. The children of each heap[i] are heap[4i+1] .. heap[4i+4].
+   * 2. priority[heap[(i-1)/4]] <= priority[heap[i]] for each i > 0.
+   * 3. index[e] is the position of e in heap, or -1 if e is not in the queue.
+   */
+  private final int[] heap;
+  private final int[] index;
+  private final int[] priority;
+
+  /**
+   * Constructor: an empty heap for the elements 0..capacity-1.
+   */
+  IntMinHeap(int capacity) {
+    heap = new int[capacity];
+    index = new int[capacity];
+    priority = new int[capacity];
+    Arrays.fill(index, -1);
+  }
+
+  /**
+   * Return the number of elements in the priority queue.
+   */
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Return true iff e is in the priority queue.
+   */
+  boolean contains(int e) {
+    return index[e] >= 0;
+  }
+
+  /**
+   * Return the capacity of this priority queue: its elements are 0..capacity()-1.
+   */
+  int capacity() {
+    return heap.length;
+  }
+
+  /**
+   * Remove every element from the priority queue.
+   * This takes time proportional to the number of elements, not to the capacity.
+   */
+  void clear() {
+    for (int i = 0; i < size; i++) {
+      index[heap[i]] = -1;
+    }
+    size = 0;
+  }
+
+  /**
+   * Add e with priority p to the priority queue.
+   * Throw an IllegalArgumentException if e is already in the queue.
+   */
+  void add(int e, int p) {
+    if (index[e] >= 0) {
+      throw new IllegalArgumentException("Cannot insert the same element twice");
+    }
+    priority[e] = p;
+    bubbleUp(e, size++);
+  }
+
+  /**
+   * Return the element of the priority queue with lowest priority, without removing it.
+   * Throw a NoSuchElementException if the priority queue is empty.
+   */
+  int peek() {
+    if (size == 0) {
+      throw new NoSuchElementException();
+    }
+    return heap[0];
+  }
+
+  /**
+   * Remove and return the element of the priority queue with lowest priority.
+   * Throw a NoSuchElementException if the priority queue is empty.
+   */
+  int poll() {
+    if (size == 0) {
+      throw new NoSuchElementException();
+    }
+    int val = heap[0];
+    index[val] = -1;
+    size--;
+    if (size > 0) {
+      bubbleDown(heap[size], 0);
+    }
+    return val;
+  }
+
+  /**
+   * Lower the priority of element e to p.
+   * Throw an IllegalArgumentException if e is not in the priority queue
+   * or p is greater than its priority.
+   */
+  void decreasePriority(int e, int p) {
+    if (index[e] < 0 || p > priority[e]) {
+      throw new IllegalArgumentException("decreasePriority: cannot raise or find " + e);
+    }
+    priority[e] = p;
+    bubbleUp(e, index[e]);
+  }
+
+  /**
+   * Move e up from heap[k] to its right place.
+   * Precondition: heap[k] is free, and the heap property holds without it.
+   */
+  private void bubbleUp(int e, int k) {
+    int p = priority[e];
+    int i = k;
+    while (i > 0) {
+      int parent = heap[(i - 1) / ARITY];
+      if (priority[parent] <= p) {
+        break;
+      }
+      heap[i] = parent;
+      index[parent] = i;
+      i = (i - 1) / ARITY;
+    }
+    heap[i] = e;
+    index[e] = i;
+  }
+
+  /**
+   * Move e down from heap[k] to its right place.
+   * Precondition: heap[k] is free, and the heap property holds without it.
+   */
+  private void bubbleDown(int e, int k) {
+    int p = priority[e];
+    int i = k;
+    while (ARITY * i + 1 < size) {
+      // child is the child of heap[i] with lowest priority.
+      int first = ARITY * i + 1;
+      int last = Math.min(first + ARITY, size);
+      int child = first;
+      int min = priority[heap[first]];
+      for (int c = first + 1; c < last; c++) {
+        if (priority[heap[c]] < min) {
+          child = c;
+          min = priority[heap[c]];
+        }
+      }
+      if (p <= min) {
+        break;
+      }
+      heap[i] = heap[child];
+      index[heap[i]] = i;
+      i = child;
+    }
+    heap[i] = e;
+    index[e] = i;
+  }
+}
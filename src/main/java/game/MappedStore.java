@@ -0,0 +1,254 @@
+package game;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An instance is a store that reads a cavern in version 2 of the CavernCodec format
+ * straight from one or more buffers, usually mapped from a file, so that nothing
+ * is read until it is asked for and nothing is copied onto the heap.
+ * <p>
+ * Version 2 lays the cavern out for random access, with every section starting at
+ * a multiple of 8 bytes, and all numbers big-endian:
+ * <pre>
+ *   0   int     MAGIC, byte version (2), 3 bytes padding
+ *   8   int     rows, int cols, int count (of open tiles),
+ *       int     id of the entrance, int id of the target,
+ *       byte    ordinal of the Tile.Type of the target, 3 bytes padding
+ *   32  long[W] bitmap of the open cells, W = (rows * cols + 63) / 64
+ *       int[W]  rank: the number of open cells before each word of the bitmap
+ *       long[n] the row-major cell of each open tile, in order of id
+ *       int[n]  the gold on each open tile
+ *       byte[n] the weights of the edges south (low nibble) and east (high nibble)
+ *               of each open tile, 0 if there is no edge
+ * </pre>
+ * The exits of the tile with id i are the four slots 4i..4i+3, one for each
+ * direction, in the order north, west, south, east: the order in which a generated
+ * cavern lists them, so that a mapped cavern's exits come in the same order.
+ */
+final class MappedStore implements CavernStore {
+  static final int VERSION = 2;
+  static final int HEADER_SIZE = 32;
+  /**
+   * The size of each buffer but the last. No number of the format straddles two
+   * buffers, as they all start at a multiple of their size.
+   */
+  static final int CHUNK_SHIFT = 30;
+  static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+  /**
+   * The largest number of open tiles, so that exit slots can be numbered by ints.
+   */
+  static final int MAX_COUNT = Integer.MAX_VALUE / 4;
+  private static final Tile.Type[] TILE_TYPES = Tile.Type.values();
+  private static final Cavern.Direction[] DIRECTIONS = {Cavern.Direction.NORTH, 
+      Cavern.Direction.WEST, Cavern.Direction.SOUTH, Cavern.Direction.EAST};
+
+  private final ByteBuffer[] chunks;
+  private final int rows;
+  private final int cols;
+  private final int count;
+  private final int entranceId;
+  private final int targetId;
+  private final Tile.Type targetType;
+  private final int words;
+  private final long rankStart;
+  private final long cellStart;
+  private final long goldStart;
+  private final long weightStart;
+
+  /**
+   * Constructor: the store held in bufs, where bufs[j] holds the bytes from
+   * j * CHUNK_SIZE onwards, from its position 0.
+   * Throw an IllegalArgumentException if the header is not valid, or bufs are
+   * too short for the sizes it gives.
+   */
+  MappedStore(ByteBuffer[] bufs) {
+    chunks = bufs;
+    if (bufs.length == 0 || bufs[0].limit() < HEADER_SIZE 
+        || bufs[0].getInt(0) != CavernCodec.MAGIC || bufs[0].get(4) != VERSION) {
+      throw new IllegalArgumentException("MappedStore: not a version 2 cavern");
+    }
+    rows = bufs[0].getInt(8);
+    cols = bufs[0].getInt(12);
+    count = bufs[0].getInt(16);
+    entranceId = bufs[0].getInt(20);
+    targetId = bufs[0].getInt(24);
+    int type = bufs[0].get(28);
+    if (rows < 3 || cols < 3 || count < 1 || count > MAX_COUNT || count > (long) rows * cols
+        || type < 0 || type >= TILE_TYPES.length) {
+      throw new IllegalArgumentException("MappedStore: invalid header");
+    }
+    targetType = TILE_TYPES[type];
+    if (entranceId < 0 || entranceId >= count || targetId < 0 || targetId >= count
+        || (targetType == Tile.Type.ENTRANCE) != (entranceId == targetId)) {
+      throw new IllegalArgumentException("MappedStore: invalid entrance or target");
+    }
+    words = OpenCells.wordCount(rows, cols);
+    rankStart = HEADER_SIZE + 8L * words;
+    cellStart = rankStart + pad(4L * words);
+    goldStart = cellStart + 8L * count;
+    weightStart = goldStart + pad(4L * count);
+    long size = 0;
+    for (ByteBuffer b : bufs) {
+      size += b.limit();
+    }
+    if (size < size(rows, cols, count)) {
+      throw new IllegalArgumentException("MappedStore: truncated cavern");
+    }
+  }
+
+  /**
+   * Return the number of bytes in the encoding of a cavern of size (rows, cols)
+   * with count open tiles.
+   */
+  static long size(int rows, int cols, int count) {
+    long words = OpenCells.wordCount(rows, cols);
+    return HEADER_SIZE + 8 * words + pad(4 * words) + 8L * count + pad(4L * count)
+        + pad(count);
+  }
+
+  /**
+   * Return n rounded up to a multiple of 8.
+   */
+  static long pad(long n) {
+    return (n + 7) & ~7L;
+  }
+
+  private long getLong(long offset) {
+    return chunks[(int) (offset >>> CHUNK_SHIFT)].getLong((int) (offset & (CHUNK_SIZE - 1)));
+  }
+
+  private int getInt(long offset) {
+    return chunks[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & (CHUNK_SIZE - 1)));
+  }
+
+  private byte getByte(long offset) {
+    return chunks[(int) (offset >>> CHUNK_SHIFT)].get((int) (offset & (CHUNK_SIZE - 1)));
+  }
+
+  @Override
+  public int getRowCount() {
+    return rows;
+  }
+
+  @Override
+  public int getColumnCount() {
+    return cols;
+  }
+
+  @Override
+  public int count() {
+    return count;
+  }
+
+  @Override
+  public int idAt(int r, int c) {
+    long cell = (long) r * cols + c;
+    int w = (int) (cell >>> 6);
+    long word = getLong(HEADER_SIZE + 8L * w);
+    long bit = 1L << cell;
+    if ((word & bit) == 0) {
+      return -1;
+    }
+    return getInt(rankStart + 4L * w) + Long.bitCount(word & (bit - 1));
+  }
+
+  @Override
+  public long cellWithId(int id) {
+    return getLong(cellStart + 8L * id);
+  }
+
+  @Override
+  public long word(int w) {
+    return getLong(HEADER_SIZE + 8L * w);
+  }
+
+  @Override
+  public int getEntranceId() {
+    return entranceId;
+  }
+
+  @Override
+  public int getTargetId() {
+    return targetId;
+  }
+
+  @Override
+  public int getGold(int id) {
+    return getInt(goldStart + 4L * id);
+  }
+
+  @Override
+  public Tile.Type getType(int id) {
+    if (id == targetId) {
+      return targetType;
+    }
+    return (id == entranceId ? Tile.Type.ENTRANCE : Tile.Type.FLOOR);
+  }
+
+  @Override
+  public int exitStart(int i) {
+    return 4 * i;
+  }
+
+  @Override
+  public int exitTarget(int k) {
+    int other = neighbour(k);
+    return (other >= 0 && weight(k, other) != 0 ? other : -1);
+  }
+
+  @Override
+  public int exitWeight(int k) {
+    return weight(k, neighbour(k));
+  }
+
+  @Override
+  public long tileBytes() {
+    // The fields of this store, and a buffer object for each chunk of the mapping.
+    return CavernStats.objectBytes(2 * CavernStats.REFERENCE + 6 * 4 + 4 * 8)
+        + CavernStats.arrayBytes(chunks.length, CavernStats.REFERENCE)
+        + chunks.length * CavernStats.objectBytes(64);
+  }
+
+  @Override
+  public long edgeBytes() {
+    return 0;
+  }
+
+  @Override
+  public long mappedBytes() {
+    return size(rows, cols, count);
+  }
+
+  /**
+   * Return the id of the open tile next to tile k / 4 in direction k % 4,
+   * or -1 if there is none.
+   */
+  private int neighbour(int k) {
+    long cell = cellWithId(k >>> 2);
+    Cavern.Direction dir = DIRECTIONS[k & 3];
+    int r = (int) (cell / cols) + dir.getRowStep();
+    int c = (int) (cell % cols) + dir.getColumnStep();
+    if (r < 0 || r >= rows || c < 0 || c >= cols) {
+      return -1;
+    }
+    return idAt(r, c);
+  }
+
+  /**
+   * Return the weight of the edge from tile k / 4 in direction k % 4 to the open
+   * tile other, which is next to it in that direction, or 0 if there is no edge.
+   * Edges are stored with the tile at their north or west end.
+   */
+  private int weight(int k, int other) {
+    switch (DIRECTIONS[k & 3]) {
+      case SOUTH:
+        return getByte(weightStart + (k >>> 2)) & 0xF;
+      case EAST:
+        return (getByte(weightStart + (k >>> 2)) >> 4) & 0xF;
+      case NORTH:
+        return getByte(weightStart + other) & 0xF;
+      default:
+        return (getByte(weightStart + other) >> 4) & 0xF;
+    }
+  }
+}
@@ -1,29 +1,35 @@
 package game;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Objects;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
  * An instance represents a node in the graph --the cavern.
+ * The edges of a node are read from the compressed graph of the cavern that owns it
+ * the first time they are needed, and are then kept in four slots, one for each
+ * grid direction, so that they can be looked up in constant time.
  */
 public class Node {
   /**
-   * The least positive fresh identifier available.
+   * The unique numerical identifier of this Node within its cavern.
    */
-  private static long FRESH_ID = 0;
-
+  private final long id;
   /**
-   * The unique numerical identifier of this Node.
+   * The cavern whose graph this Node belongs to.
    */
-  private final long id;
+  private final Cavern cavern;
+
   /**
-   * Represents the edges outgoing from this Node.
+   * The edges leaving this Node, indexed by the ordinal of their Cavern.Direction
+   * (null where there is no edge), or null if they have not been read yet.
    */
-  private final Set<Edge> edges;
-  private final Set<Node> neighbours;
+  private volatile Edge[] exits;
 
+  /**
+   * Unmodifiable views of the edges outgoing from this Node and of its neighbours.
+   */
   private final Set<Edge> unmodifiableEdges;
   private final Set<Node> unmodifiableNeighbours;
 
@@ -32,31 +38,50 @@ public class Node {
    */
   private final Tile tile;
 
-  /* package */ Node(Tile t) {
-    this(FRESH_ID, t);
-  }
-
   /**
-   * Constructor: an instance with id givenId and tile t.
+   * Constructor: an instance of cavern c with id givenId and tile t.
+   * Ids are handed out by the cavern that owns the node.
    */
-  Node(long givenId, Tile t) {
+  Node(Cavern c, long givenId, Tile t) {
     id = givenId;
-    FRESH_ID = Math.max(FRESH_ID, givenId + 1);
-    edges = new HashSet<>();
-    neighbours = new HashSet<>();
+    cavern = c;
 
-    unmodifiableEdges = Collections.unmodifiableSet(edges);
-    unmodifiableNeighbours = Collections.unmodifiableSet(neighbours);
+    unmodifiableEdges = new ExitSet();
+    unmodifiableNeighbours = new NeighbourSet();
 
     tile = t;
   }
 
   /**
-   * Add edge e to the graph.
+   * Return the edges leaving this Node, indexed by direction.
+   * They are read from the cavern on the first call. Racing threads may each
+   * read them, but every copy is complete before it is published.
    */
-  void addEdge(Edge e) {
-    edges.add(e);
-    neighbours.add(e.getOther(this));
+  private Edge[] exits() {
+    Edge[] result = exits;
+    if (result == null) {
+      result = new Edge[Cavern.Direction.values().length];
+      if (id >= 0 && id < cavern.numOpenTiles()) {
+        for (int k = cavern.exitStart((int) id); k < cavern.exitStart((int) id + 1); k++) {
+          if (cavern.exitTarget(k) < 0) {
+            continue;
+          }
+          Node other = cavern.getNodeById(cavern.exitTarget(k));
+          result[directionTo(other).ordinal()] = new Edge(this, other, cavern.exitWeight(k));
+        }
+      }
+      exits = result;
+    }
+    return result;
+  }
+
+  /**
+   * Return the direction in which q lies from this Node on the grid,
+   * or null if q is not next to it.
+   */
+  private Cavern.Direction directionTo(Node q) {
+    return Cavern.Direction.of(q.tile.getRow() - tile.getRow(),
+                               q.tile.getColumn() - tile.getColumn());
   }
 
   /**
@@ -71,12 +96,29 @@ public class Node {
    * .     * Throw an IllegalArgumentException if there is no such edge.
    */
   public Edge getEdge(Node q) {
-    for (Edge e : edges) {
-      if (e.getDest().equals(q)) {
-        return e;
-      }
+    Cavern.Direction dir = directionTo(q);
+    Edge e = (dir == null ? null : exits()[dir.ordinal()]);
+    if (e == null || !e.getDest().equals(q)) {
+      throw new IllegalArgumentException("getEdge: Node must be a neighbour of this Node");
     }
-    throw new IllegalArgumentException("getEdge: Node must be a neighbour of this Node");
+    return e;
+  }
+
+  /**
+   * Return the Edge leaving this Node in direction dir, or null if there is a wall
+   * in that direction.
+   */
+  public Edge getEdge(Cavern.Direction dir) {
+    return exits()[dir.ordinal()];
+  }
+
+  /**
+   * Return the neighbour of this Node in direction dir, or null if there is a wall
+   * in that direction.
+   */
+  public Node getNeighbour(Cavern.Direction dir) {
+    Edge e = exits()[dir.ordinal()];
+    return (e == null ? null : e.getDest());
   }
 
   /**
@@ -101,7 +143,9 @@ public class Node {
   }
 
   /**
-   * Return truee if ob is a Node with the same id as this one.
+   * Return true if ob is a Node of the same cavern with the same id as this one.
+   * Ids are only unique within a cavern, so nodes of different caverns (such as the
+   * explore and escape caverns, or two copies of one cavern) are never equal.
    */
   @Override
   public boolean equals(Object ob) {
@@ -111,14 +155,140 @@ public class Node {
     if (!(ob instanceof Node)) {
       return false;
     }
-    return id == ((Node) ob).id;
+    Node n = (Node) ob;
+    return id == n.id && cavern == n.cavern;
   }
 
   /**
-   * Return a hash code for this node, based solely on its id.
+   * Return a hash code for this node, based on its id and its cavern.
    */
   @Override
   public int hashCode() {
-    return Objects.hash(id);
+    return 31 * Long.hashCode(id) + System.identityHashCode(cavern);
+  }
+
+  /**
+   * An instance is an iterator over the non-empty exit slots of this Node.
+   */
+  private abstract class ExitIterator<T> implements Iterator<T> {
+    private final Edge[] slots = exits();
+    private int next = advance(0);
+
+    /**
+     * Return the index of the first non-empty slot at or after i.
+     */
+    private int advance(int i) {
+      while (i < slots.length && slots[i] == null) {
+        i++;
+      }
+      return i;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < slots.length;
+    }
+
+    /**
+     * Return the next edge and move past it.
+     */
+    Edge nextEdge() {
+      if (next >= slots.length) {
+        throw new NoSuchElementException();
+      }
+      Edge e = slots[next];
+      next = advance(next + 1);
+      return e;
+    }
+  }
+
+  /**
+   * Return an estimate of the bytes retained by the edges of this Node that have been
+   * made: none until they are first asked for.
+   */
+  long edgeBytes() {
+    Edge[] made = exits;
+    if (made == null) {
+      return 0;
+    }
+    long bytes = CavernStats.arrayBytes(made.length, CavernStats.REFERENCE);
+    for (Edge e : made) {
+      if (e != null) {
+        bytes += CavernStats.objectBytes(4 + 2 * CavernStats.REFERENCE);
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Return the number of edges leaving this Node.
+   */
+  private int degree() {
+    int degree = 0;
+    for (Edge e : exits()) {
+      if (e != null) {
+        degree++;
+      }
+    }
+    return degree;
+  }
+
+  /**
+   * An instance is an unmodifiable view of the edges leaving this Node.
+   */
+  private class ExitSet extends AbstractSet<Edge> {
+    @Override
+    public Iterator<Edge> iterator() {
+      return new ExitIterator<Edge>() {
+        @Override
+        public Edge next() {
+          return nextEdge();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return degree();
+    }
+
+    @Override
+    public boolean contains(Object ob) {
+      if (!(ob instanceof Edge)) {
+        return false;
+      }
+      Cavern.Direction dir = directionTo(((Edge) ob).getDest());
+      return dir != null && exits()[dir.ordinal()] == ob;
+    }
+  }
+
+  /**
+   * An instance is an unmodifiable view of the neighbours of this Node.
+   */
+  private class NeighbourSet extends AbstractSet<Node> {
+    @Override
+    public Iterator<Node> iterator() {
+      return new ExitIterator<Node>() {
+        @Override
+        public Node next() {
+          return nextEdge().getDest();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return degree();
+    }
+
+    @Override
+    public boolean contains(Object ob) {
+      if (!(ob instanceof Node)) {
+        return false;
+      }
+      Cavern.Direction dir = directionTo((Node) ob);
+      Edge e = (dir == null ? null : exits()[dir.ordinal()]);
+      return e != null && e.getDest().equals(ob);
+    }
   }
 }
@@ -0,0 +1,152 @@
+package game;
+
+import java.util.BitSet;
+
+/**
+ * An instance is a bitmap of the open (non-wall) cells of a grid of size (rows, cols).
+ * Cells are numbered in row-major order, and the open cells are given the ids
+ * 0..count()-1 in the same order. A rank directory with one entry for every 64 cells
+ * makes the id of a cell a constant-time lookup.
+ */
+final class OpenCells {
+  private final int rows;
+  private final int cols;
+  /**
+   * Bit (c % 64) of bits[c / 64] is set iff cell c is open.
+   */
+  private final long[] bits;
+  /**
+   * rank[w] is the number of open cells before bits[w].
+   */
+  private final int[] rank;
+  private final int count;
+
+  /**
+   * Constructor: an instance for a grid of size (rws, cls) whose open cells
+   * are the set bits of open.
+   */
+  OpenCells(int rws, int cls, BitSet open) {
+    this(rws, cls, open.toLongArray());
+  }
+
+  /**
+   * Constructor: an instance for a grid of size (rws, cls) whose open cells
+   * are the set bits of words (bit c % 64 of words[c / 64] for cell c).
+   * Bits beyond the end of the grid are ignored; missing words count as 0.
+   */
+  OpenCells(int rws, int cls, long[] words) {
+    rows = rws;
+    cols = cls;
+    bits = new long[wordCount(rows, cols)];
+    System.arraycopy(words, 0, bits, 0, Math.min(words.length, bits.length));
+    int spare = (int) ((long) rows * cols % 64);
+    if (spare != 0) {
+      bits[bits.length - 1] &= (1L << spare) - 1;
+    }
+    rank = new int[bits.length];
+    int seen = 0;
+    for (int w = 0; w < bits.length; w++) {
+      rank[w] = seen;
+      seen += Long.bitCount(bits[w]);
+    }
+    count = seen;
+  }
+
+  /**
+   * Return the number of rows in the grid.
+   */
+  int getRowCount() {
+    return rows;
+  }
+
+  /**
+   * Return the number of columns in the grid.
+   */
+  int getColumnCount() {
+    return cols;
+  }
+
+  /**
+   * Return the number of 64-bit words in the bitmap of a grid of size (rws, cls).
+   */
+  static int wordCount(int rws, int cls) {
+    return (int) (((long) rws * cls + 63) / 64);
+  }
+
+  /**
+   * Return word w of the bitmap: bit b is set iff cell 64 * w + b is open.
+   */
+  long word(int w) {
+    return bits[w];
+  }
+
+  /**
+   * Return the number of open cells.
+   */
+  int count() {
+    return count;
+  }
+
+  /**
+   * Return true iff (r, c) is an open cell.
+   * Precondition: (r, c) is on the grid.
+   */
+  boolean isOpen(int r, int c) {
+    long cell = cellOf(r, c);
+    return (bits[(int) (cell >>> 6)] & (1L << cell)) != 0;
+  }
+
+  /**
+   * Return the id of the open cell (r, c), or -1 if it is a wall.
+   * Precondition: (r, c) is on the grid.
+   */
+  int idAt(int r, int c) {
+    long cell = cellOf(r, c);
+    int w = (int) (cell >>> 6);
+    long bit = 1L << cell;
+    if ((bits[w] & bit) == 0) {
+      return -1;
+    }
+    return rank[w] + Long.bitCount(bits[w] & (bit - 1));
+  }
+
+  /**
+   * Return the row-major index of the open cell whose id is id.
+   * This is the inverse of idAt(): a binary search of the rank directory
+   * followed by a scan of a single word.
+   * Precondition: 0 <= id < count().
+   */
+  long cellWithId(int id) {
+    int lo = 0;
+    int hi = rank.length - 1;
+    // Find the last word w with rank[w] <= id.
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (rank[mid] <= id) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    long word = bits[lo];
+    for (int skip = id - rank[lo]; skip > 0; skip--) {
+      word &= word - 1;
+    }
+    return ((long) lo << 6) + Long.numberOfTrailingZeros(word);
+  }
+
+  /**
+   * Return an estimate of the bytes this instance retains on the heap.
+   */
+  long retainedBytes() {
+    return CavernStats.objectBytes(5 * 4) + CavernStats.arrayBytes(bits.length, 8)
+        + CavernStats.arrayBytes(rank.length, 4);
+  }
+
+  /**
+   * Return the row-major index of cell (r, c).
+   */
+  long cellOf(int r, int c) {
+    return (long) r * cols + c;
+  }
+}
@@ -0,0 +1,557 @@
+package game;
+
+import java.util.Arrays;
+
+/**
+ * An instance runs shortest-path searches over the open tiles of one cavern layout,
+ * by id, keeping its working arrays from one search to the next: after the first,
+ * a search allocates nothing (except the arrays that it returns).
+ * The distances of a search are only valid until the next one starts, which is
+ * why a search does not clear them; each search has an epoch, and a distance is
+ * only that of the current search if it was stamped with its epoch.
+ * <p>
+ * A search for the distance between two tiles is bidirectional: it searches from
+ * both ends at once, each time settling a tile on the side with fewer tiles waiting,
+ * and keeps the length of the shortest path found through an edge between tiles
+ * reached from each end. It stops once the lowest distances waiting on the two sides
+ * add up to at least that length, as no shorter path can be left to find. Each side
+ * has then covered a disk of about half the distance, rather than one side a disk of
+ * the whole distance. The graph is undirected, so the side from the target follows
+ * the same edges.
+ * <p>
+ * A search for the distance between two tiles can instead be an A* search from one
+ * end: tiles are settled in order of their distance from the source plus an estimate
+ * of their distance to the target, the Manhattan distance between them on the grid
+ * times the smallest edge weight. As an edge joins tiles next to each other, the
+ * estimate never exceeds the true distance, nor falls by more than the weight of an
+ * edge across it, so the target is settled at its true distance, with fewer tiles
+ * settled before it. How many fewer depends on how close the smallest weight is to
+ * the typical one: in a generated cavern, whose weights are spread evenly from 1 to 15,
+ * the estimate is so far below the true distance that barely a tenth fewer tiles are
+ * settled, which does not pay for making the estimates. So A* is only used in a layout
+ * whose smallest weight is at least half the mean, where it settles about half as many
+ * tiles, and bidirectional searches are used otherwise. A search for the distances to
+ * every tile runs from one end, with no estimates (Dijkstra's algorithm).
+ * <p>
+ * Edge weights are small positive ints (at most Cavern.MAX_EDGE_WEIGHT in generated
+ * caverns), so the tiles waiting to be settled are kept in a circular array of buckets,
+ * one for each key from that of the tile settled last to that plus the largest weight
+ * and the smallest (Dial's algorithm): adding a tile, moving it to a lower key and
+ * taking the one with the lowest key all take constant time, with no comparisons.
+ * A layout with larger weights than MAX_BUCKET_WEIGHT, which would need too many
+ * buckets, is searched with an IntMinHeap instead. Both give the same distances.
+ * <p>
+ * An instance may only be used by one thread at a time; see Cavern.takeSearch().
+ */
+final class PathSearch {
+  /**
+   * The largest edge weight for which buckets are used rather than a heap.
+   */
+  static final int MAX_BUCKET_WEIGHT = 64;
+
+  private final CavernStore store;
+  private final int cols;
+  /**
+   * The smallest weight of an edge of the layout, by which the Manhattan distance
+   * to the target is multiplied to estimate the distance to it.
+   */
+  private final int minWeight;
+  /**
+   * True iff searches between two tiles are A* searches, which estimate the distance
+   * to the target, rather than bidirectional ones.
+   */
+  private final boolean estimating;
+  /**
+   * The number of buckets of each side, or 0 if it uses a heap.
+   */
+  private final int buckets;
+
+  /**
+   * The search from the source, and the search from the target of a bidirectional
+   * search, which is only made the first time one is run (null until then).
+   */
+  private final Side forward;
+  private Side backward;
+
+  /**
+   * If estimates are made: the row and column of each tile that the search from the
+   * source has reached (otherwise row and col are null), and of its target.
+   */
+  private final int[] row;
+  private final int[] col;
+  private int targetRow;
+  private int targetCol;
+
+  /**
+   * The ends of the shortest path found by the last bidirectional search: it goes from
+   * the source to meetForward, which the forward side reached, then (if they differ)
+   * along an edge to meetBackward, which the backward side reached, then to the target.
+   */
+  private int meetForward;
+  private int meetBackward;
+
+  /**
+   * Constructor: an instance for searches over the open tiles of layout.
+   */
+  PathSearch(CavernStore layout) {
+    store = layout;
+    cols = layout.getColumnCount();
+    final int n = layout.count();
+    int maxWeight = 0;
+    int min = Integer.MAX_VALUE;
+    long edges = 0;
+    long total = 0;
+    for (int k = 0; k < layout.exitStart(n); k++) {
+      if (layout.exitTarget(k) >= 0) {
+        int weight = layout.exitWeight(k);
+        maxWeight = Math.max(maxWeight, weight);
+        min = Math.min(min, weight);
+        edges++;
+        total += weight;
+      }
+    }
+    minWeight = (min == Integer.MAX_VALUE ? 0 : min);
+    estimating = (edges > 0 && 2 * minWeight * edges >= total);
+    buckets = (maxWeight <= MAX_BUCKET_WEIGHT
+               ? maxWeight + (estimating ? minWeight : 0) + 1 : 0);
+    forward = new Side(n, buckets);
+    row = (estimating ? new int[n] : null);
+    col = (estimating ? new int[n] : null);
+  }
+
+  /**
+   * Return true iff searches between two tiles are A* searches (see the class comment).
+   */
+  boolean isEstimating() {
+    return estimating;
+  }
+
+  /**
+   * Return an estimate of the bytes this instance retains on the heap.
+   */
+  long retainedBytes() {
+    long bytes = CavernStats.objectBytes(5 * CavernStats.REFERENCE + 7 * 4 + 1)
+        + forward.retainedBytes() + (backward == null ? 0 : backward.retainedBytes());
+    if (row != null) {
+      bytes += 2 * CavernStats.arrayBytes(row.length, 4);
+    }
+    return bytes;
+  }
+
+  /**
+   * Return the length of the shortest path from the open tile with id source to the one
+   * with id target, or Integer.MAX_VALUE if there is none.
+   */
+  int distance(int source, int target) {
+    return (estimating ? searchTo(source, target) : searchBetween(source, target));
+  }
+
+  /**
+   * Return the ids of the open tiles of a shortest path from the open tile with id
+   * source to the one with id target, both included, in order; or null if there is
+   * no path between them.
+   */
+  int[] path(int source, int target) {
+    if (estimating) {
+      int length = searchTo(source, target);
+      return (length == Integer.MAX_VALUE ? null : forward.pathTo(target, 0));
+    }
+    int length = searchBetween(source, target);
+    if (length == Integer.MAX_VALUE) {
+      return null;
+    }
+    // The path from the source to meetForward, then that from meetBackward back
+    // to the target (which overwrites meetForward if it is the same tile).
+    int tail = 0;
+    for (int i = meetBackward; i != -1; i = backward.parent[i]) {
+      tail++;
+    }
+    int[] ids = forward.pathTo(meetForward, meetForward == meetBackward ? tail - 1 : tail);
+    int k = ids.length - tail;
+    for (int i = meetBackward; i != -1; i = backward.parent[i]) {
+      ids[k++] = i;
+    }
+    return ids;
+  }
+
+  /**
+   * Return the lengths of the shortest paths from the open tile with id source to
+   * every open tile, indexed by id: Integer.MAX_VALUE for a tile that cannot be reached.
+   */
+  int[] distancesFrom(int source) {
+    forward.start(source, 0);
+    int f;
+    while ((f = forward.poll()) >= 0) {
+      relax(forward, f, -1);
+    }
+    return forward.distances();
+  }
+
+  /**
+   * Return the estimate of the distance from tile i, which is next to tile from
+   * (unless from is -1, for the source), to target, recording the row and column
+   * of i; or 0 if no estimates are made or target is -1.
+   */
+  private int estimate(int i, int from, int target) {
+    if (target < 0 || !estimating) {
+      return 0;
+    }
+    int r;
+    int c;
+    if (from < 0) {
+      long cell = store.cellWithId(i);
+      r = (int) (cell / cols);
+      c = (int) (cell % cols);
+    } else {
+      // Ids are in row-major order, so the tile east of from, if it is open, has
+      // the next id and the one west the one before; tiles north and south are
+      // further away (unless the row between them has no other open tile).
+      r = row[from];
+      c = col[from];
+      if (i == from + 1 && c + 1 < cols && store.idAt(r, c + 1) >= 0) {
+        c++;
+      } else if (i == from - 1 && c > 0 && store.idAt(r, c - 1) >= 0) {
+        c--;
+      } else {
+        r += (i > from ? 1 : -1);
+      }
+    }
+    row[i] = r;
+    col[i] = c;
+    return minWeight * (Math.abs(r - targetRow) + Math.abs(c - targetCol));
+  }
+
+  /**
+   * Relax the edges from tile f, just settled by side: reach each tile at their other
+   * end that side has not reached, and lower the distance of each it has reached
+   * if the path through f is shorter. target is that of an A* search, or -1.
+   */
+  private void relax(Side side, int f, int target) {
+    int df = side.dist[f];
+    for (int k = store.exitStart(f); k < store.exitStart(f + 1); k++) {
+      int w = store.exitTarget(k);
+      if (w < 0) {
+        continue;
+      }
+      int through = df + store.exitWeight(k);
+      if (!side.reached(w)) {
+        side.reach(w, through, estimate(w, f, target), f);
+      } else if (through < side.dist[w]) {
+        side.lower(w, through, f);
+      }
+    }
+  }
+
+  /**
+   * Run a search from the open tile with id source until the one with id target is
+   * settled, estimating the distance to target if estimates are made, and return
+   * the length of the shortest path to target, or Integer.MAX_VALUE if there is none.
+   */
+  private int searchTo(int source, int target) {
+    if (estimating) {
+      long cell = store.cellWithId(target);
+      targetRow = (int) (cell / cols);
+      targetCol = (int) (cell % cols);
+    }
+    forward.start(source, estimate(source, -1, target));
+    int f;
+    while ((f = forward.poll()) >= 0) {
+      if (f == target) {
+        return forward.dist[f];
+      }
+      relax(forward, f, target);
+    }
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * Run a bidirectional search between the open tiles with ids source and target,
+   * and return the length of the shortest path between them, or Integer.MAX_VALUE
+   * if there is none, recording its middle in meetForward and meetBackward.
+   */
+  private int searchBetween(int source, int target) {
+    if (backward == null) {
+      backward = new Side(store.count(), buckets);
+    }
+    forward.start(source, 0);
+    backward.start(target, 0);
+    int best = (source == target ? 0 : Integer.MAX_VALUE);
+    meetForward = source;
+    meetBackward = source;
+    while (true) {
+      int forwardKey = forward.minKey();
+      int backwardKey = backward.minKey();
+      // A shorter path would have to go through a tile waiting on each side.
+      if (forwardKey == Integer.MAX_VALUE || backwardKey == Integer.MAX_VALUE
+          || (long) forwardKey + backwardKey >= best) {
+        return best;
+      }
+      boolean fromSource = forward.size() <= backward.size();
+      Side side = (fromSource ? forward : backward);
+      Side other = (fromSource ? backward : forward);
+      int f = side.poll();
+      int df = side.dist[f];
+      for (int k = store.exitStart(f); k < store.exitStart(f + 1); k++) {
+        int w = store.exitTarget(k);
+        if (w < 0) {
+          continue;
+        }
+        int through = df + store.exitWeight(k);
+        if (!side.reached(w)) {
+          side.reach(w, through, 0, f);
+        } else if (through < side.dist[w]) {
+          side.lower(w, through, f);
+        }
+        if (other.reached(w) && (long) through + other.dist[w] < best) {
+          best = through + other.dist[w];
+          meetForward = (fromSource ? f : w);
+          meetBackward = (fromSource ? w : f);
+        }
+      }
+    }
+  }
+
+  /**
+   * An instance is the state of a search from one tile: the tiles it has reached,
+   * their distances, and those waiting to be settled, in buckets or a heap.
+   */
+  private static final class Side {
+    /**
+     * If stamp[i] == epoch, tile i has been reached: dist[i] is the length of the
+     * shortest path found so far to it, which comes from tile parent[i] (-1 for the
+     * start), and estimate[i] the estimate of its distance to the target. Its key is
+     * dist[i] + estimate[i]. Otherwise no path to it has been found.
+     */
+    final int[] dist;
+    final int[] parent;
+    private final int[] estimate;
+    private final int[] stamp;
+    private int epoch;
+
+    /**
+     * The tiles reached but not yet settled, in a heap keyed by key, or null.
+     */
+    private final IntMinHeap heap;
+    /**
+     * Otherwise, the same tiles in buckets, as doubly linked lists: the tiles with key
+     * d are in the list from head[d % head.length], which continues to next[i] from
+     * each tile i in it and goes back to prev[i] (-1 at either end). Every tile in the
+     * buckets has a key from key to key + head.length - 1, and bucket b is that of key.
+     */
+    private final int[] head;
+    private final int[] next;
+    private final int[] prev;
+    private int key;
+    private int b;
+    private int queued;
+
+    /**
+     * Constructor: an instance for searches over n tiles, with the given number of
+     * buckets, or with a heap if buckets is 0.
+     */
+    Side(int n, int buckets) {
+      dist = new int[n];
+      parent = new int[n];
+      estimate = new int[n];
+      stamp = new int[n];
+      if (buckets > 0) {
+        heap = null;
+        head = new int[buckets];
+        next = new int[n];
+        prev = new int[n];
+      } else {
+        heap = new IntMinHeap(n);
+        head = null;
+        next = null;
+        prev = null;
+      }
+    }
+
+    /**
+     * Return an estimate of the bytes this instance retains on the heap.
+     */
+    long retainedBytes() {
+      long bytes = CavernStats.objectBytes(8 * CavernStats.REFERENCE + 4 * 4)
+          + 4 * CavernStats.arrayBytes(dist.length, 4);
+      if (heap != null) {
+        bytes += CavernStats.objectBytes(4 + 3 * CavernStats.REFERENCE)
+            + 3 * CavernStats.arrayBytes(dist.length, 4);
+      } else {
+        bytes += CavernStats.arrayBytes(head.length, 4)
+            + 2 * CavernStats.arrayBytes(dist.length, 4);
+      }
+      return bytes;
+    }
+
+    /**
+     * Start a new search from tile source, whose distance to the target is estimated
+     * to be h.
+     */
+    void start(int source, int h) {
+      if (heap != null) {
+        heap.clear();
+      } else {
+        Arrays.fill(head, -1);
+        queued = 0;
+        key = h;
+        b = h % head.length;
+      }
+      epoch++;
+      if (epoch == 0) {
+        // The stamps have wrapped around, so old ones could look current.
+        Arrays.fill(stamp, 0);
+        epoch = 1;
+      }
+      reach(source, 0, h, -1);
+    }
+
+    /**
+     * Return true iff tile i has been reached.
+     */
+    boolean reached(int i) {
+      return stamp[i] == epoch;
+    }
+
+    /**
+     * Record that tile i has been reached, at distance d, from tile from, and that its
+     * distance to the target is estimated to be h.
+     */
+    void reach(int i, int d, int h, int from) {
+      stamp[i] = epoch;
+      dist[i] = d;
+      estimate[i] = h;
+      parent[i] = from;
+      if (heap != null) {
+        heap.add(i, d + h);
+      } else {
+        link(i, (d + h) % head.length);
+        queued++;
+      }
+    }
+
+    /**
+     * Lower the distance of tile i, which is waiting, to d, from tile from.
+     */
+    void lower(int i, int d, int from) {
+      parent[i] = from;
+      if (heap != null) {
+        dist[i] = d;
+        heap.decreasePriority(i, d + estimate[i]);
+      } else {
+        unlink(i, (dist[i] + estimate[i]) % head.length);
+        dist[i] = d;
+        link(i, (d + estimate[i]) % head.length);
+      }
+    }
+
+    /**
+     * Return the number of tiles waiting to be settled.
+     */
+    int size() {
+      return (heap != null ? heap.size() : queued);
+    }
+
+    /**
+     * Return the lowest key of a tile waiting to be settled, or Integer.MAX_VALUE
+     * if there is none.
+     */
+    int minKey() {
+      if (heap != null) {
+        if (heap.isEmpty()) {
+          return Integer.MAX_VALUE;
+        }
+        int i = heap.peek();
+        return dist[i] + estimate[i];
+      }
+      if (queued == 0) {
+        return Integer.MAX_VALUE;
+      }
+      while (head[b] < 0) {
+        key++;
+        b = (b + 1 == head.length ? 0 : b + 1);
+      }
+      return key;
+    }
+
+    /**
+     * Remove and return the tile waiting to be settled with the lowest key, or -1
+     * if there is none.
+     */
+    int poll() {
+      if (heap != null) {
+        return (heap.isEmpty() ? -1 : heap.poll());
+      }
+      if (queued == 0) {
+        return -1;
+      }
+      int f = head[b];
+      while (f < 0) {
+        key++;
+        b = (b + 1 == head.length ? 0 : b + 1);
+        f = head[b];
+      }
+      head[b] = next[f];
+      if (next[f] >= 0) {
+        prev[next[f]] = -1;
+      }
+      queued--;
+      return f;
+    }
+
+    /**
+     * Return the distances of the search, indexed by tile: Integer.MAX_VALUE for a
+     * tile that has not been reached.
+     */
+    int[] distances() {
+      int[] result = new int[dist.length];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = (stamp[i] == epoch ? dist[i] : Integer.MAX_VALUE);
+      }
+      return result;
+    }
+
+    /**
+     * Return an array of the tiles of the path found from the start to tile end,
+     * in order, followed by extra unused elements.
+     */
+    int[] pathTo(int end, int extra) {
+      int length = 0;
+      for (int i = end; i != -1; i = parent[i]) {
+        length++;
+      }
+      int[] ids = new int[length + extra];
+      int k = length;
+      for (int i = end; i != -1; i = parent[i]) {
+        ids[--k] = i;
+      }
+      return ids;
+    }
+
+    /**
+     * Add tile i to the front of bucket c.
+     */
+    private void link(int i, int c) {
+      int first = head[c];
+      next[i] = first;
+      prev[i] = -1;
+      if (first >= 0) {
+        prev[first] = i;
+      }
+      head[c] = i;
+    }
+
+    /**
+     * Remove tile i from bucket c, which it is in.
+     */
+    private void unlink(int i, int c) {
+      if (prev[i] >= 0) {
+        next[prev[i]] = next[i];
+      } else {
+        head[c] = next[i];
+      }
+      if (next[i] >= 0) {
+        prev[next[i]] = prev[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package game;
+
+/**
+ * An enum representing the ways in which the seed of a game determines its caverns.
+ * A seed only identifies a game together with the scheme it is used with.
+ */
+public enum SeedScheme {
+  /**
+   * The default scheme: the size of the caverns, the explore cavern and then the
+   * escape cavern are all drawn, in that order, from a single Random.
+   * <p>
+   * This is the scheme of the original game, but a seed no longer gives the same
+   * caverns as it did there. The orb is now picked among the tiles dug deep enough,
+   * rather than by digging caverns again until one is far enough from the entrance,
+   * and an escape cavern whose orb cell is a wall gets a passage to it, rather than
+   * being dug again. Both draw different random numbers, so games of the original
+   * game cannot be played again from their seeds.
+   */
+  SEQUENTIAL(1),
+  /**
+   * The size of the caverns, the explore cavern and the escape cavern each come from
+   * their own generator, all split from the seed. The two caverns can then be dug at
+   * the same time: the escape cavern only needs the position of the orb at the very end.
+   */
+  SPLIT(2);
+
+  private final int version;
+
+  /**
+   * Constructor: the scheme with version number v.
+   */
+  private SeedScheme(int v) {
+    version = v;
+  }
+
+  /**
+   * Return the version number of this scheme.
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Return the scheme with version number v.
+   * Throw an IllegalArgumentException if there is no such scheme.
+   */
+  public static SeedScheme forVersion(int v) {
+    for (SeedScheme scheme : values()) {
+      if (scheme.version == v) {
+        return scheme;
+      }
+    }
+    throw new IllegalArgumentException("Unknown seed scheme version: " + v);
+  }
+}
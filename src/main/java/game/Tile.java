@@ -1,44 +1,48 @@
 package game;
 
+/**
+ * An instance is a view of one cell of a cavern.
+ * The gold, type and pickup state of the open tiles are stored by the cavern,
+ * in arrays indexed by the id of their node; a tile only knows where to find them.
+ */
 public class Tile {
   /**
-   * The row and column position of the GameNode.
+   * The cavern this Tile belongs to.
    */
-  private final int row;
-  private final int col;
+  private final Cavern cavern;
   /**
-   * Amount of gold on this Node.
+   * The id of the node of this Tile in its cavern, or -1 if it is a wall.
    */
-  private final int gold;
+  private final int id;
   /**
-   * The Type of Tile of this Node.
+   * The row and column position of the GameNode.
    */
-  private Type type;
-  private boolean goldPickedUp;
+  private final int row;
+  private final int col;
 
   /**
-   * Constructor: a new Tile at (r, c), with g amount of gold, and Type t.
+   * Constructor: the Tile at (r, c) of cavern cav, whose node has id i
+   * (or -1 if it is a wall).
    */
-  public Tile(int r, int c, int g, Type t) {
+  Tile(Cavern cav, int i, int r, int c) {
+    cavern = cav;
+    id = i;
     row = r;
     col = c;
-    gold = g;
-    type = t;
-    goldPickedUp = false;
   }
 
   /**
    * Return the amount of gold on this Tile.
    */
   public int getGold() {
-    return (goldPickedUp ? 0 : gold);
+    return (id < 0 ? 0 : cavern.getGold(id));
   }
 
   /**
    * Return the original amount of gold on this tile (even if picked up.)
    */
   public int getOriginalGold() {
-    return gold;
+    return (id < 0 ? 0 : cavern.getOriginalGold(id));
   }
 
   /**
@@ -59,23 +63,14 @@ public class Tile {
    * Returns the Type of this Tile.
    */
   public Type getType() {
-    return type;
-  }
-
-  /**
-   * Set the Type of this Tile to t.
-   */
-  void setType(Type t) {
-    type = t;
+    return (id < 0 ? Type.WALL : cavern.getType(id));
   }
 
   /**
    * Set the gold on this Node to 0 and returns the amount "picked up".
    */
   public int takeGold() {
-    final int result = getGold();
-    goldPickedUp = true;
-    return result;
+    return (id < 0 ? 0 : cavern.takeGold(id));
   }
 
   /**
@@ -0,0 +1,253 @@
+package game;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * An instance digs caverns as a grid of square tiles that are dug independently,
+ * and in parallel, and then stitched together.
+ * <p>
+ * Each tile is filled at random and smoothed by a cellular automaton into caves, of
+ * which only the largest is kept (or a single cell, if the tile came out solid).
+ * The caves of neighbouring tiles are then joined by L-shaped corridors between their
+ * anchors (the kept cells nearest the centre of each tile), along a spanning tree of
+ * the tiles, and the entrance is joined to the cave of its tile in the same way.
+ * Every open cell is therefore connected to the entrance.
+ * <p>
+ * All the work is linear in the size of the grid, and everything but the stitching
+ * (a corridor per tile) is spread over the threads of a ForkJoinPool. Each tile keeps
+ * its cave in a BitSet of its own, so no tile writes to the cells of another, and the
+ * whole grid takes one bit per cell rather than a byte.
+ * Each tile has its own generator, seeded from the Random given to dig(), so the
+ * caverns do not depend on how the tiles are scheduled.
+ */
+public final class TiledCavernGenerator implements CavernGenerator {
+  /**
+   * The default length of a side of a tile, in cells.
+   */
+  public static final int DEFAULT_TILE_SIZE = 64;
+  /**
+   * The probability that a cell is open before smoothing.
+   */
+  private static final double FILL = 0.55;
+  /**
+   * The number of rounds of smoothing. In each round, a cell becomes open iff
+   * at least SMOOTHING_THRESHOLD of the nine cells in the 3x3 square around it are.
+   * Cells outside the tile count as walls.
+   */
+  private static final int SMOOTHING_STEPS = 4;
+  private static final int SMOOTHING_THRESHOLD = 5;
+  private static final Cavern.Direction[] DIRECTIONS = Cavern.Direction.values();
+
+  private final ForkJoinPool pool;
+  private final int tileSize;
+
+  /**
+   * Constructor: an instance that digs tiles of the default size on the
+   * common ForkJoinPool.
+   */
+  public TiledCavernGenerator() {
+    this(ForkJoinPool.commonPool(), DEFAULT_TILE_SIZE);
+  }
+
+  /**
+   * Constructor: an instance that digs tiles of size (size, size) on the threads of p.
+   * Throw an IllegalArgumentException if size is less than 3.
+   */
+  public TiledCavernGenerator(ForkJoinPool p, int size) {
+    if (size < 3) {
+      throw new IllegalArgumentException("TiledCavernGenerator: tile size must be at least 3");
+    }
+    pool = p;
+    tileSize = size;
+  }
+
+  @Override
+  public void dig(CavernGenerator.Site site, Random rand) {
+    final int rows = site.getRowCount();
+    final int cols = site.getColumnCount();
+    // The tiles cover the interior of the grid, from (1, 1) to (rows - 2, cols - 2).
+    final int tileRows = (rows - 2 + tileSize - 1) / tileSize;
+    final int tileCols = (cols - 2 + tileSize - 1) / tileSize;
+    final int numTiles = tileRows * tileCols;
+    final long[] seeds = new long[numTiles];
+    for (int t = 0; t < numTiles; t++) {
+      seeds[t] = rand.nextLong();
+    }
+
+    // caves[t] holds the cells of tile t that are to be opened, in the local
+    // coordinates of the tile (row * width + col), and anchors[t] is its anchor.
+    final BitSet[] caves = new BitSet[numTiles];
+    final int[] anchors = new int[numTiles];
+    pool.submit(() -> IntStream.range(0, numTiles).parallel().forEach((t) -> {
+      int top = 1 + (t / tileCols) * tileSize;
+      int left = 1 + (t % tileCols) * tileSize;
+      int height = Math.min(tileSize, rows - 1 - top);
+      int width = Math.min(tileSize, cols - 1 - left);
+      caves[t] = new BitSet(height * width);
+      int anchor = digTile(caves[t], height, width, new SplittableRandom(seeds[t]));
+      anchors[t] = (top + anchor / width) * cols + left + anchor % width;
+    })).join();
+
+    // open holds the packed cells (row * cols + col) to be opened, which are those
+    // of the caves and then of the corridors.
+    final BitSet open = new BitSet(rows * cols);
+    for (int t = 0; t < numTiles; t++) {
+      int top = 1 + (t / tileCols) * tileSize;
+      int left = 1 + (t % tileCols) * tileSize;
+      int width = Math.min(tileSize, cols - 1 - left);
+      BitSet cave = caves[t];
+      for (int i = cave.nextSetBit(0); i >= 0; i = cave.nextSetBit(i + 1)) {
+        open.set((top + i / width) * cols + left + i % width);
+      }
+      caves[t] = null;
+    }
+
+    // Join each tile to the one to its west, and the tiles of the first column
+    // to the one to their north.
+    for (int t = 1; t < numTiles; t++) {
+      int neighbour = (t % tileCols != 0 ? t - 1 : t - tileCols);
+      digCorridor(open, cols, anchors[t], anchors[neighbour]);
+    }
+
+    // Join the entrance, through the one interior cell next to it.
+    int inRow = site.getEntranceRow();
+    int inCol = site.getEntranceColumn();
+    for (Cavern.Direction dir : DIRECTIONS) {
+      int r = site.getEntranceRow() + dir.getRowStep();
+      int c = site.getEntranceColumn() + dir.getColumnStep();
+      if (site.isInterior(r, c)) {
+        inRow = r;
+        inCol = c;
+      }
+    }
+    int tile = ((inRow - 1) / tileSize) * tileCols + (inCol - 1) / tileSize;
+    digCorridor(open, cols, inRow * cols + inCol, anchors[tile]);
+
+    // Opened in order of packed cell, as the gold on each cell depends on the order.
+    for (int cell = open.nextSetBit(0); cell >= 0; cell = open.nextSetBit(cell + 1)) {
+      site.open(cell / cols, cell % cols);
+    }
+  }
+
+  /**
+   * Dig a tile of size (height, width) into kept, which holds its cells by local
+   * index (row * width + col), using rnd as the source of randomness, and return the
+   * local index of its anchor.
+   */
+  private static int digTile(BitSet kept, int height, int width, SplittableRandom rnd) {
+    boolean[] cur = new boolean[height * width];
+    for (int i = 0; i < cur.length; i++) {
+      cur[i] = rnd.nextDouble() < FILL;
+    }
+    boolean[] next = new boolean[cur.length];
+    // rowSums[i] is the number of open cells among local cell i and its east and
+    // west neighbours, so that each 3x3 count is the sum of three of them.
+    int[] rowSums = new int[cur.length];
+    for (int step = 0; step < SMOOTHING_STEPS; step++) {
+      for (int r = 0; r < height; r++) {
+        int base = r * width;
+        int sum = 0;
+        for (int c = -1; c < width; c++) {
+          if (c + 1 < width && cur[base + c + 1]) {
+            sum++;
+          }
+          if (c >= 0) {
+            rowSums[base + c] = sum;
+            if (c - 1 >= 0 && cur[base + c - 1]) {
+              sum--;
+            }
+          }
+        }
+      }
+      for (int i = 0; i < cur.length; i++) {
+        int count = rowSums[i];
+        if (i >= width) {
+          count += rowSums[i - width];
+        }
+        if (i + width < cur.length) {
+          count += rowSums[i + width];
+        }
+        next[i] = count >= SMOOTHING_THRESHOLD;
+      }
+      boolean[] swap = cur;
+      cur = next;
+      next = swap;
+    }
+
+    // Label the caves breadth first: cave[i] is 1 + the index of the first cell of
+    // the cave of local cell i in queue, or 0 if i is a wall.
+    int[] cave = new int[cur.length];
+    int[] queue = new int[cur.length];
+    int size = 0;
+    int best = -1;
+    int bestSize = 0;
+    for (int start = 0; start < cur.length; start++) {
+      if (!cur[start] || cave[start] != 0) {
+        continue;
+      }
+      int first = size;
+      queue[size++] = start;
+      cave[start] = first + 1;
+      for (int head = first; head < size; head++) {
+        int r = queue[head] / width;
+        int c = queue[head] % width;
+        for (Cavern.Direction dir : DIRECTIONS) {
+          int i = r + dir.getRowStep();
+          int j = c + dir.getColumnStep();
+          if (i >= 0 && i < height && j >= 0 && j < width 
+              && cur[i * width + j] && cave[i * width + j] == 0) {
+            cave[i * width + j] = first + 1;
+            queue[size++] = i * width + j;
+          }
+        }
+      }
+      if (size - first > bestSize) {
+        best = first + 1;
+        bestSize = size - first;
+      }
+    }
+
+    // Keep the largest cave, and anchor the tile at its cell nearest the centre.
+    int anchor = (height / 2) * width + width / 2;
+    int anchorDist = Integer.MAX_VALUE;
+    for (int i = 0; i < cur.length; i++) {
+      if (cave[i] == best && best > 0) {
+        kept.set(i);
+        int dist = Math.abs(i / width - height / 2) + Math.abs(i % width - width / 2);
+        if (dist < anchorDist) {
+          anchor = i;
+          anchorDist = dist;
+        }
+      }
+    }
+    kept.set(anchor);
+    return anchor;
+  }
+
+  /**
+   * Open the cells of open, a grid with cols columns, along an L-shaped corridor
+   * from packed cell from to packed cell to: along the row of from, then along the
+   * column of to. Both cells are interior, so the whole corridor is.
+   */
+  private static void digCorridor(BitSet open, int cols, int from, int to) {
+    int row = from / cols;
+    int col = from % cols;
+    int toCol = to % cols;
+    int toRow = to / cols;
+    int colStep = Integer.signum(toCol - col);
+    int rowStep = Integer.signum(toRow - row);
+    open.set(row * cols + col);
+    while (col != toCol) {
+      col += colStep;
+      open.set(row * cols + col);
+    }
+    while (row != toRow) {
+      row += rowStep;
+      open.set(row * cols + col);
+    }
+  }
+}
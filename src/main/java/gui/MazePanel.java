@@ -184,7 +184,14 @@ public class MazePanel extends JPanel {
    * Return an icon for the gold on tile n, or null otherwise.
    */
   public BufferedImage getGoldIcon(Node n) {
-    double gold = n.getTile().getGold();
+    return getGoldIcon(n.getTile().getGold());
+  }
+
+  /**
+   * Return an icon for an amount of gold.
+   */
+  private BufferedImage getGoldIcon(int amount) {
+    double gold = amount;
     if (gold == Cavern.TASTY_VALUE) {
       return tasty;
     }
@@ -209,11 +216,13 @@ public class MazePanel extends JPanel {
     }
     page.setColor(darkness);
 
-    //Draw the maze tiles
+    //Draw the maze tiles. The cavern is read cell by cell in row-major order,
+    //which is the order in which it stores its tiles, so no Tile objects are needed.
     for (int row = 0; row < cavern.getRowCount(); row++) {
       for (int col = 0; col < cavern.getColumnCount(); col++) {
+        Tile.Type type = cavern.getTypeAt(row, col);
         //This is a walkable tile
-        if (cavern.getTileAt(row, col).getType() != Tile.Type.WALL) {
+        if (type != Tile.Type.WALL) {
           //Draw the path image to the background
           page.drawImage(path, TILE_WIDTH * col, TILE_HEIGHT * row,
               TILE_WIDTH, TILE_HEIGHT, null);
@@ -223,18 +232,19 @@ public class MazePanel extends JPanel {
                 TILE_WIDTH, TILE_HEIGHT);
           }
           //If this is the goal, draw the orb
-          if (cavern.getTileAt(row, col).getType() == Tile.Type.ORB) {
+          if (type == Tile.Type.ORB) {
             page.drawImage(orb, TILE_WIDTH * col, TILE_HEIGHT * row,
                 TILE_WIDTH, TILE_HEIGHT, null);
           }
           //If there is a coin here, draw it
-          if (cavern.getTileAt(row, col).getGold() > 0) {
-            page.drawImage(getGoldIcon(cavern.getNodeAt(row, col)),
+          int gold = cavern.getGoldAt(row, col);
+          if (gold > 0) {
+            page.drawImage(getGoldIcon(gold),
                 TILE_WIDTH * col, TILE_HEIGHT * row,
                 TILE_WIDTH, TILE_HEIGHT, null);
           }
           //If this tile is the entrance, draw the graphic
-          if (cavern.getTileAt(row, col).getType() == Tile.Type.ENTRANCE) {
+          if (type == Tile.Type.ENTRANCE) {
             page.drawImage(entrance, TILE_WIDTH * col, TILE_HEIGHT * row,
                 TILE_WIDTH, TILE_HEIGHT, null);
           }
@@ -1,11 +1,14 @@
 package main;
 
+import game.GameOptions;
 import game.GameState;
+import game.SeedScheme;
 
 import java.util.Optional;
 
 /**
  * Run this program to see a demonstration of the GUI interface.
+ * The options -s, -v, -rows and -cols are those of TXTmain.
  */
 public class GUImain {
   /**
@@ -13,6 +16,10 @@ public class GUImain {
    */
   public static void main(String[] args) {
     Optional<Long> seed = Utilities.parseSeedArgs(args);
-    GameState.runNewGame((seed.isPresent() ? seed.get() : 0), true);
+    SeedScheme scheme = Utilities.parseSchemeArgs(args);
+    int rows = Utilities.parseSizeArg("-rows", args);
+    int cols = Utilities.parseSizeArg("-cols", args);
+    GameState.runNewGame((seed.isPresent() ? seed.get() : 0),
+                         new GameOptions().scheme(scheme).size(rows, cols));
   }
 }
@@ -1,15 +1,38 @@
 package main;
 
+import game.CavernArchive;
+import game.CavernCache;
+import game.CavernFactory;
+import game.GameOptions;
 import game.GameState;
+import game.SeedScheme;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 /**
  * Runs the program via the text (console) interface.
+ * <p>
+ * The options -rows and -cols set the size of the caverns, which is otherwise given
+ * by the seed. Caverns of more than 25 rows or 40 columns are dug in tiles, as caves
+ * joined by corridors, rather than breadth first (see CavernFactory.digsInTiles()),
+ * and the size printed for the game says so.
+ * <p>
+ * The option -save, followed by a file, generates the games with seeds s..s+n-1, where
+ * s is given by -s (1 if there is none) and n by -n, and adds them to the archive in
+ * that file (see CavernArchive), creating it if need be, instead of running them.
+ * Games already in the archive are skipped. -a, followed by the file, then runs them.
+ * <p>
+ * When one game is run several times (-n with -s), it is generated only once, and
+ * kept in a CavernCache. The option -cache, followed by a number of open tiles, sets
+ * the capacity of that cache (CavernCache.DEFAULT_CAPACITY if there is none). Its
+ * counts of hits and misses are printed at the end.
  */
 public class TXTmain {
   /**
@@ -28,16 +51,98 @@ public class TXTmain {
     }
     
     Optional<Long> seed = Utilities.parseSeedArgs(args);
+    Optional<Path> resumePath = Utilities.parsePathArg("-resume", args);
+    if (resumePath.isPresent()) {
+      GameState.resumeGame(resumePath.get(), false);
+      return;
+    }
+    Optional<Path> checkpoint = Utilities.parsePathArg("-checkpoint", args);
+    Optional<Path> archivePath = Utilities.parsePathArg("-a", args);
+    if (archivePath.isPresent()) {
+      runArchivedGames(archivePath.get(), seed);
+      return;
+    }
+    SeedScheme scheme = Utilities.parseSchemeArgs(args);
+    int rows = Utilities.parseSizeArg("-rows", args);
+    int cols = Utilities.parseSizeArg("-cols", args);
+    Optional<Path> savePath = Utilities.parsePathArg("-save", args);
+    if (savePath.isPresent()) {
+      saveGames(savePath.get(), seed.orElse(1L), numTimesToRun, scheme, rows, cols);
+      return;
+    }
+    boolean printStats = argList.contains("-stats");
 
+    // The same game is run each time only if there is a seed. Then it needs to be
+    // generated only once.
+    CavernCache cache = null;
+    if (seed.isPresent() && numTimesToRun > 1) {
+      int capacity = Utilities.parseSizeArg("-cache", args);
+      if (capacity < 0) {
+        System.err.println("Error, -cache must be followed by a positive number of tiles");
+      }
+      cache = (capacity > 0 ? new CavernCache(capacity) : new CavernCache());
+    }
+    GameOptions options = new GameOptions().useGui(false).scheme(scheme).size(rows, cols)
+        .checkpoint(checkpoint.orElse(null)).printStats(printStats).cache(cache);
     int totalScore = 0;
 
     for (int i = 0; i < numTimesToRun; i++) {
-      totalScore += GameState.runNewGame((seed.isPresent() ? seed.get() : 0), false);
+      totalScore += GameState.runNewGame((seed.isPresent() ? seed.get() : 0), options);
       System.out.println();
     }
 
     if (totalScore != 0) {
       System.out.println("Average score : " + totalScore / numTimesToRun);
     }
+    if (cache != null) {
+      System.out.println("Cavern cache : " + cache);
+    }
+  }
+
+  /**
+   * Add the games with seeds firstSeed..firstSeed+count-1, whose caverns come from the
+   * seed as interpreted by scheme and have size (rows, cols) (0 for the size given by
+   * the seed), to the archive at path, skipping those that are already in it.
+   * The games are generated in parallel, in batches, and the archive is flushed after
+   * each batch, so that an interrupted run keeps the batches already written.
+   */
+  private static void saveGames(Path path, long firstSeed, int count, SeedScheme scheme,
+                                int rows, int cols) throws IOException {
+    final int batchSize = 256;
+    int added = 0;
+    try (CavernArchive archive = CavernArchive.openForAppend(path)) {
+      for (long first = firstSeed; first - firstSeed < count; first += batchSize) {
+        long last = first + Math.min(batchSize, count - (first - firstSeed));
+        List<CavernFactory.Caverns> batch = LongStream.range(first, last).parallel()
+            .filter((s) -> !archive.contains(s))
+            .mapToObj((s) -> CavernFactory.generate(s, scheme, rows, cols))
+            .collect(Collectors.toList());
+        for (CavernFactory.Caverns caverns : batch) {
+          archive.add(caverns);
+        }
+        archive.flush();
+        added += batch.size();
+      }
+      System.out.println("Added " + added + " games to " + path + ", which has " 
+                         + archive.size());
+    }
+  }
+
+  /**
+   * Run the game with seed from the archive at path, or every game in it if there
+   * is no seed.
+   */
+  private static void runArchivedGames(Path path, Optional<Long> seed) throws IOException {
+    try (CavernArchive archive = CavernArchive.open(path)) {
+      long[] seeds = (seed.isPresent() ? new long[] {seed.get()} : archive.getSeeds());
+      int totalScore = 0;
+      for (long s : seeds) {
+        totalScore += GameState.runArchivedGame(archive, s, false);
+        System.out.println();
+      }
+      if (totalScore != 0) {
+        System.out.println("Average score : " + totalScore / seeds.length);
+      }
+    }
   }
 }
@@ -1,5 +1,10 @@
 package main;
 
+import game.SeedScheme;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -24,4 +29,66 @@ public class Utilities {
     }
     return seed;
   }
+
+  /**
+   * Return the number following the option flag (such as "-rows") in args,
+   * or 0 if there is no such option.
+   */
+  static int parseSizeArg(String flag, String... args) {
+    List<String> argList = new ArrayList<>(Arrays.asList(args));
+    int index = argList.indexOf(flag);
+    int size = 0;
+    if (index >= 0) {
+      try {
+        size = Integer.parseInt(argList.get(index + 1));
+      } catch (NumberFormatException e) {
+        System.err.println("Error, " + flag + " must be followed by a number");
+      } catch (IndexOutOfBoundsException e) {
+        System.err.println("Error, " + flag + " must be followed by a size");
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Return the path following the option flag (such as "-a") in args,
+   * or an empty Optional if there is no such option.
+   */
+  static Optional<Path> parsePathArg(String flag, String... args) {
+    List<String> argList = new ArrayList<>(Arrays.asList(args));
+    int index = argList.indexOf(flag);
+    Optional<Path> path = Optional.empty();
+    if (index >= 0) {
+      try {
+        path = Optional.of(Paths.get(argList.get(index + 1)));
+      } catch (InvalidPathException e) {
+        System.err.println("Error, " + e.getMessage());
+      } catch (IndexOutOfBoundsException e) {
+        System.err.println("Error, " + flag + " must be followed by a file");
+      }
+    }
+    return path;
+  }
+
+  /**
+   * Return the seed scheme whose version follows the -v option in args,
+   * or SEQUENTIAL if there is no such option.
+   */
+  static SeedScheme parseSchemeArgs(String... args) {
+    List<String> argList = new ArrayList<>(Arrays.asList(args));
+    int versionIndex = argList.indexOf("-v");
+    SeedScheme scheme = SeedScheme.SEQUENTIAL;
+    if (versionIndex >= 0) {
+      try {
+        scheme = SeedScheme.forVersion(Integer.parseInt(argList.get(versionIndex + 1)));
+      } catch (NumberFormatException e) {
+        System.err.println("Error, -v must be followed by a numerical seed scheme version");
+      } catch (IllegalArgumentException e) {
+        System.err.println("Error, " + e.getMessage());
+      } catch (IndexOutOfBoundsException e) {
+        System.err.println("Error, -v must be followed by a seed scheme version");
+      }
+    }
+    return scheme;
+  }
 }
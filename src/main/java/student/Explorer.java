@@ -91,6 +91,31 @@ public class Explorer {
    * @param state the information available at the current state
    */
   public void escape(EscapeState state) {
+    Node start = state.getCurrentNode();
+    List<Node> route = null;
+    // With no time to spare, only a shortest path will do, so there is no point crawling.
+    if (state.getTimeRemaining() > state.getShortestPathLength(start, state.getExit())) {
+      route = crawl(state);
+    }
+    if (route == null) {
+      // The shortest path is always in time.
+      List<Node> path = state.getShortestPath(start, state.getExit());
+      route = path.subList(1, path.size());
+    }
+
+    for (Node node : route) {
+      if (state.getCurrentNode().getTile().getGold() > 0) {
+        state.pickUpGold();
+      }
+      state.moveTo(node);
+    }
+  }
+
+  /**
+   * Return the route, not including the current node, found by a crawler that
+   * collects the most gold of those that reach the exit in time, or null if none does.
+   */
+  private List<Node> crawl(EscapeState state) {
     List<Crawler> crawlers = new ArrayList<Crawler>();
 
     int threadCount = 1000;
@@ -115,14 +140,8 @@ public class Explorer {
       .collect(Collectors.toList());
 
     if (crawlers.size() == 0) {
-      return;
-    }
-
-    for (Node node : crawlers.get(0).getRoute()) {
-      if (state.getCurrentNode().getTile().getGold() > 0) {
-        state.pickUpGold();
-      }
-      state.moveTo(node);
+      return null;
     }
+    return crawlers.get(0).getRoute();
   }
 }
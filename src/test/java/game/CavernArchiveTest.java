@@ -0,0 +1,150 @@
+package game;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that games added to a CavernArchive can be loaded again, as the caverns
+ * their seeds give, after the archive is reopened.
+ */
+public class CavernArchiveTest {
+  private Path path;
+
+  @Before
+  public void createPath() throws IOException {
+    path = Files.createTempFile("caverns", ".cav");
+    Files.delete(path);
+  }
+
+  @After
+  public void deletePath() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  /**
+   * Check that archive has the caverns that seed gives.
+   */
+  private static void assertHasGame(CavernArchive archive, long seed) throws IOException {
+    CavernFactory.Caverns made = CavernFactory.generate(seed);
+    CavernFactory.Caverns loaded = archive.load(seed);
+    assertEquals(seed, loaded.getSeed());
+    assertEquals(made.getExploreCavern().serialize(), loaded.getExploreCavern().serialize());
+    assertEquals(made.getEscapeCavern().serialize(), loaded.getEscapeCavern().serialize());
+  }
+
+  @Test
+  public void gamesAddedAreLoadedAfterReopening() throws IOException {
+    try (CavernArchive archive = CavernArchive.openForAppend(path)) {
+      for (long seed = 1; seed <= 20; seed++) {
+        archive.add(CavernFactory.generate(seed));
+      }
+    }
+    try (CavernArchive archive = CavernArchive.openForAppend(path)) {
+      for (long seed = 21; seed <= 30; seed++) {
+        archive.add(CavernFactory.generate(seed));
+      }
+    }
+    try (CavernArchive archive = CavernArchive.open(path)) {
+      assertEquals(30, archive.size());
+      long[] seeds = new long[30];
+      for (int k = 0; k < 30; k++) {
+        seeds[k] = k + 1;
+      }
+      assertArrayEquals(seeds, archive.getSeeds());
+      for (long seed = 30; seed >= 1; seed--) {
+        assertHasGame(archive, seed);
+      }
+      assertFalse(archive.contains(31));
+    }
+  }
+
+  @Test
+  public void flushingAfterEachGameKeepsTheArchiveSmall() throws IOException {
+    long cavernBytes = 0;
+    try (CavernArchive archive = CavernArchive.openForAppend(path)) {
+      for (long seed = 1; seed <= 200; seed++) {
+        CavernFactory.Caverns caverns = CavernFactory.generate(seed);
+        cavernBytes += CavernCodec.encode(caverns.getExploreCavern()).remaining()
+            + CavernCodec.encode(caverns.getEscapeCavern()).remaining();
+        archive.add(caverns);
+        archive.flush();
+      }
+    }
+    // The index takes 24 bytes a game; replaced indexes must not pile up.
+    assertTrue("archive of " + Files.size(path) + " bytes",
+               Files.size(path) < cavernBytes + 8 * 24 * 200);
+    try (CavernArchive archive = CavernArchive.open(path)) {
+      assertEquals(200, archive.size());
+      for (long seed = 1; seed <= 200; seed += 17) {
+        assertHasGame(archive, seed);
+      }
+    }
+  }
+
+  @Test
+  public void gamesAddedButNotFlushedAreIgnored() throws IOException {
+    try (CavernArchive archive = CavernArchive.openForAppend(path)) {
+      archive.add(CavernFactory.generate(1));
+    }
+    CavernArchive unflushed = CavernArchive.openForAppend(path);
+    try {
+      unflushed.add(CavernFactory.generate(2));
+      try (CavernArchive archive = CavernArchive.open(path)) {
+        assertEquals(1, archive.size());
+        assertFalse(archive.contains(2));
+        assertHasGame(archive, 1);
+      }
+    } finally {
+      unflushed.close();
+    }
+    try (CavernArchive archive = CavernArchive.open(path)) {
+      assertEquals(2, archive.size());
+      assertHasGame(archive, 2);
+    }
+  }
+
+  @Test
+  public void misuseIsRejected() throws IOException {
+    try (CavernArchive archive = CavernArchive.openForAppend(path)) {
+      archive.add(CavernFactory.generate(1));
+      try {
+        archive.add(CavernFactory.generate(1));
+        fail("added a seed twice");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    try (CavernArchive archive = CavernArchive.open(path)) {
+      try {
+        archive.load(2);
+        fail("loaded a seed that is not in the archive");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+      try {
+        archive.add(CavernFactory.generate(2));
+        fail("added to an archive opened for loading");
+      } catch (IllegalStateException e) {
+        // expected
+      }
+    }
+    Files.write(path, new byte[64]);
+    try {
+      CavernArchive.open(path).close();
+      fail("opened a file that is not an archive");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
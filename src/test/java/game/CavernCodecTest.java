@@ -0,0 +1,92 @@
+package game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that CavernCodec decodes every cavern it encodes as the same cavern, in each
+ * version of its format, and rejects encodings that are cut short.
+ */
+public class CavernCodecTest {
+  /**
+   * Return the explore and escape caverns of the games with seeds 1..count, with some
+   * gold taken from every third one, so that the gold remaining is encoded too.
+   */
+  private static Cavern[] caverns(int count) {
+    Cavern[] cs = new Cavern[2 * count];
+    for (int s = 1; s <= count; s++) {
+      CavernFactory.Caverns game = CavernFactory.generate(s);
+      cs[2 * s - 2] = game.getExploreCavern();
+      cs[2 * s - 1] = game.getEscapeCavern();
+      if (s % 3 == 0) {
+        cs[2 * s - 1].getGoldNodes().stream().limit(3).forEach((n) -> n.getTile().takeGold());
+      }
+    }
+    return cs;
+  }
+
+  @Test
+  public void decodingGivesTheEncodedCavern() {
+    for (Cavern c : caverns(30)) {
+      List<String> lines = c.serialize();
+      ByteBuffer buf = CavernCodec.encode(c);
+      assertEquals(CavernCodec.MAGIC, buf.getInt(0));
+      assertEquals(CavernCodec.VERSION, buf.get(4));
+      Cavern decoded = CavernCodec.decode(buf);
+      assertFalse("decode leaves bytes unread", buf.hasRemaining());
+      assertEquals(lines, decoded.serialize());
+    }
+  }
+
+  @Test
+  public void decodingKeepsPrecomputedDistances() {
+    for (Cavern c : caverns(5)) {
+      c.precomputeDistances();
+      ByteBuffer buf = CavernCodec.encode(c);
+      assertEquals(CavernCodec.SECTIONED_VERSION, buf.get(4));
+      Cavern decoded = CavernCodec.decode(buf);
+      assertEquals(c.serialize(), decoded.serialize());
+      assertNotNull("the distances are lost", decoded.distanceTable());
+      assertEquals(c.minPathLengthFromEntrance(), decoded.minPathLengthFromEntrance());
+    }
+  }
+
+  @Test
+  public void writingAndLoadingGivesTheSameCavern() throws IOException {
+    Cavern c = CavernFactory.generate(42).getEscapeCavern();
+    Path path = Files.createTempFile("cavern", ".bin");
+    try {
+      CavernCodec.write(c, path);
+      assertEquals(c.serialize(), CavernCodec.load(path).serialize());
+      CavernCodec.writeMappable(c, path);
+      assertEquals(c.serialize(), CavernCodec.load(path).serialize());
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  public void truncatedEncodingsAreRejected() {
+    ByteBuffer buf = CavernCodec.encode(CavernFactory.generate(7).getEscapeCavern());
+    for (int cut = 1; cut <= 3; cut++) {
+      ByteBuffer part = buf.duplicate();
+      part.limit(buf.limit() - cut);
+      try {
+        CavernCodec.decode(part);
+        fail("decoded an encoding missing its last " + cut + " bytes");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that each seed still gives the caverns it gave when the fixture
+ * cavern-digests.txt was written, by comparing digests of their serialized forms.
+ */
+public class CavernSeedTest {
+  /**
+   * Return the SHA-256 digest, in hex, of the lines of c.serialize(), each ended by '\n'.
+   */
+  static String digest(Cavern c) throws NoSuchAlgorithmException {
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    for (String line : c.serialize()) {
+      md.update(line.getBytes(StandardCharsets.UTF_8));
+      md.update((byte) '\n');
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : md.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  @Test
+  public void seedsGiveTheirStoredCaverns() throws IOException, NoSuchAlgorithmException {
+    InputStream in = CavernSeedTest.class.getResourceAsStream("cavern-digests.txt");
+    assertNotNull("missing fixture cavern-digests.txt", in);
+    int checked = 0;
+    try (BufferedReader reader =
+             new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split(" ");
+        SeedScheme scheme = SeedScheme.valueOf(fields[0]);
+        long seed = Long.parseLong(fields[1]);
+        CavernFactory.Caverns caverns = CavernFactory.generate(seed, scheme);
+        assertEquals("explore cavern of " + scheme + " seed " + seed,
+                     fields[2], digest(caverns.getExploreCavern()));
+        assertEquals("escape cavern of " + scheme + " seed " + seed,
+                     fields[3], digest(caverns.getEscapeCavern()));
+        checked++;
+      }
+    }
+    assertFalse("the fixture lists no seeds", checked == 0);
+  }
+
+  @Test
+  public void concurrentGenerationGivesTheSameCaverns() throws NoSuchAlgorithmException {
+    for (SeedScheme scheme : SeedScheme.values()) {
+      for (long seed = 1; seed <= 5; seed++) {
+        CavernFactory.Caverns one = CavernFactory.generate(seed, scheme);
+        CavernFactory.Caverns other = CavernFactory.generateConcurrently(seed, scheme);
+        assertEquals(digest(one.getExploreCavern()), digest(other.getExploreCavern()));
+        assertEquals(digest(one.getEscapeCavern()), digest(other.getEscapeCavern()));
+      }
+    }
+  }
+
+  @Test
+  public void deserializingGivesTheSameCavern() throws NoSuchAlgorithmException {
+    Cavern c = CavernFactory.generate(42).getEscapeCavern();
+    List<String> lines = c.serialize();
+    assertEquals(lines, Cavern.deserialize(lines).serialize());
+  }
+}
@@ -0,0 +1,70 @@
+package game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that CavernTextReader reads the text written by Cavern.serialize() as the
+ * same cavern that Cavern.deserialize(List) makes of it.
+ */
+public class CavernTextReaderTest {
+  /**
+   * Return the lines, each ended by '\n', as one string.
+   */
+  private static String text(List<String> lines) {
+    StringBuilder sb = new StringBuilder();
+    for (String line : lines) {
+      sb.append(line).append('\n');
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void readingGivesTheSerializedCavern() throws IOException {
+    for (long seed = 1; seed <= 20; seed++) {
+      CavernFactory.Caverns game = CavernFactory.generate(seed);
+      for (Cavern c : new Cavern[] {game.getExploreCavern(), game.getEscapeCavern()}) {
+        List<String> lines = c.serialize();
+        String text = text(lines);
+        assertEquals(lines, CavernTextReader.read(new StringReader(text)).serialize());
+        ByteBuffer buf = ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+        assertEquals(lines, CavernTextReader.read(buf).serialize());
+        assertEquals(lines, Cavern.deserialize(lines).serialize());
+      }
+    }
+  }
+
+  @Test
+  public void readingAcceptsCrlfAndNoFinalNewline() throws IOException {
+    List<String> lines = CavernFactory.generate(3).getEscapeCavern().serialize();
+    String text = String.join("\r\n", lines);
+    assertEquals(lines, CavernTextReader.read(new StringReader(text)).serialize());
+  }
+
+  @Test
+  public void malformedTextIsRejected() throws IOException {
+    List<String> lines = CavernFactory.generate(5).getExploreCavern().serialize();
+    String text = text(lines);
+    String[] bad = {
+      text.replaceFirst("FLOOR=", "FLOR="),
+      text.replaceFirst("-1", "-0"),
+      "0:0,trgt:0\n",
+    };
+    for (String b : bad) {
+      try {
+        CavernTextReader.read(new StringReader(b));
+        fail("read malformed text");
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+}
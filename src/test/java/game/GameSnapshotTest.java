@@ -0,0 +1,79 @@
+package game;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the snapshot a game writes as its escape phase starts holds that game,
+ * and that resumeGame() plays the escape phase from it.
+ */
+public class GameSnapshotTest {
+  private static final long SEED = 7;
+
+  private Path checkpoint;
+  private Path copy;
+
+  @Before
+  public void writeCheckpoint() throws IOException {
+    checkpoint = Files.createTempFile("game", ".snap");
+    copy = Files.createTempFile("game", ".snap");
+    GameState.runNewGame(SEED, new GameOptions().useGui(false).checkpoint(checkpoint));
+  }
+
+  @After
+  public void deleteFiles() throws IOException {
+    Files.deleteIfExists(checkpoint);
+    Files.deleteIfExists(copy);
+  }
+
+  @Test
+  public void snapshotHoldsTheStartOfTheEscape() throws IOException {
+    GameState state = GameState.readSnapshot(checkpoint, false);
+    CavernFactory.Caverns caverns = CavernFactory.generate(SEED);
+    Tile orb = caverns.getExploreCavern().getTarget().getTile();
+    Tile position = state.getCurrentNode().getTile();
+    assertEquals(orb.getRow(), position.getRow());
+    assertEquals(orb.getColumn(), position.getColumn());
+    assertTrue(state.getExploreSucceeded());
+    Cavern escape = caverns.getEscapeCavern();
+    assertTrue(state.getTimeRemaining() 
+               >= escape.minPathLengthToTarget(escape.getNodeAt(orb.getRow(), orb.getColumn())));
+    assertEquals(escape.numOpenTiles(), state.getVertices().size());
+  }
+
+  @Test
+  public void rewritingASnapshotGivesTheSameBytes() throws IOException {
+    GameState.readSnapshot(checkpoint, false).writeSnapshot(copy);
+    assertArrayEquals(Files.readAllBytes(checkpoint), Files.readAllBytes(copy));
+  }
+
+  @Test
+  public void resumedGameEscapes() throws IOException {
+    assertTrue(GameState.resumeGame(checkpoint, false) > 0);
+    // Resuming does not change the snapshot, so it can be resumed again.
+    assertTrue(GameState.resumeGame(checkpoint, false) > 0);
+  }
+
+  @Test
+  public void truncatedSnapshotIsRejected() throws IOException {
+    byte[] bytes = Files.readAllBytes(checkpoint);
+    Files.write(copy, Arrays.copyOf(bytes, bytes.length / 2));
+    try {
+      GameState.resumeGame(copy, false);
+      fail("resumed a truncated snapshot");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
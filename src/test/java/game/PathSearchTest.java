@@ -0,0 +1,107 @@
+package game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the searches between two tiles of PathSearch, A* and bidirectional, give
+ * the distances that Dijkstra's algorithm over the whole cavern (distancesFrom) gives,
+ * and paths of that length.
+ */
+public class PathSearchTest {
+  /**
+   * Check, for pairs count random pairs of open tiles of c, that the search between
+   * them agrees with distancesFrom(), and so does the path found between them.
+   */
+  private static void checkPairs(Cavern c, int pairs, Random rand) {
+    int n = c.numOpenTiles();
+    PathSearch search = new PathSearch(c.store());
+    PathSearch dijkstra = new PathSearch(c.store());
+    for (int k = 0; k < pairs; k++) {
+      int i = rand.nextInt(n);
+      int j = rand.nextInt(n);
+      int[] dist = dijkstra.distancesFrom(i);
+      assertEquals("distance " + i + " to " + j, dist[j], search.distance(i, j));
+      int[] path = search.path(i, j);
+      assertEquals(i, path[0]);
+      assertEquals(j, path[path.length - 1]);
+      assertEquals("length of path " + i + " to " + j, dist[j], lengthOf(c, path));
+    }
+  }
+
+  /**
+   * Return the sum of the weights of the edges between consecutive tiles of path,
+   * which must be joined by an edge.
+   */
+  private static int lengthOf(Cavern c, int[] path) {
+    CavernStore store = c.store();
+    int length = 0;
+    for (int k = 1; k < path.length; k++) {
+      int weight = -1;
+      for (int e = store.exitStart(path[k - 1]); e < store.exitStart(path[k - 1] + 1); e++) {
+        if (store.exitTarget(e) == path[k]) {
+          weight = store.exitWeight(e);
+        }
+      }
+      assertTrue("no edge from " + path[k - 1] + " to " + path[k], weight > 0);
+      length += weight;
+    }
+    return length;
+  }
+
+  @Test
+  public void aStarGivesTheDistancesOfDijkstra() {
+    Random rand = new Random(1);
+    for (long seed = 1; seed <= 20; seed++) {
+      Cavern explore = CavernFactory.generate(seed).getExploreCavern();
+      assertTrue(new PathSearch(explore.store()).isEstimating());
+      checkPairs(explore, 50, rand);
+    }
+    Cavern large = CavernFactory.generate(3, SeedScheme.SPLIT, 300, 300).getExploreCavern();
+    assertTrue(new PathSearch(large.store()).isEstimating());
+    checkPairs(large, 20, rand);
+  }
+
+  @Test
+  public void bidirectionalSearchGivesTheDistancesOfDijkstra() {
+    Random rand = new Random(2);
+    for (long seed = 1; seed <= 20; seed++) {
+      Cavern escape = CavernFactory.generate(seed).getEscapeCavern();
+      assertFalse(new PathSearch(escape.store()).isEstimating());
+      checkPairs(escape, 50, rand);
+    }
+  }
+
+  @Test
+  public void entranceToTargetOfALoadedCavernIsTheSame() {
+    for (long seed = 1; seed <= 20; seed++) {
+      Cavern explore = CavernFactory.generate(seed).getExploreCavern();
+      Cavern loaded = CavernCodec.decode(CavernCodec.encode(explore));
+      int[] dist = loaded.distancesFrom(loaded.indexOf(loaded.getEntrance()));
+      int expected = dist[loaded.indexOf(loaded.getTarget())];
+      assertEquals(expected, explore.minPathLengthFromEntrance());
+      assertEquals(expected, loaded.minPathLengthFromEntrance());
+    }
+  }
+
+  @Test
+  public void shortestPathHasTheMinimumLength() {
+    Cavern escape = CavernFactory.generate(11).getEscapeCavern();
+    Node entrance = escape.getEntrance();
+    List<Node> path = escape.shortestPath(entrance, escape.getTarget());
+    assertEquals(entrance, path.get(0));
+    assertEquals(escape.getTarget(), path.get(path.size() - 1));
+    int length = 0;
+    for (int k = 1; k < path.size(); k++) {
+      length += path.get(k - 1).getEdge(path.get(k)).length();
+    }
+    assertEquals(escape.minPathLength(entrance, escape.getTarget()), length);
+    assertEquals(escape.minPathLengthToTarget(entrance), length);
+  }
+}